@@ -2,8 +2,17 @@ package plc.project;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * See the specification for information about what the different visit
@@ -13,9 +22,39 @@ public final class Analyzer implements Ast.Visitor<Void> {
     public Scope scope;
     private Ast.Method method;
 
+    /**
+     * When checking method bodies in parallel, the position of the method
+     * declaring each function, and the position of the method being checked,
+     * so functions declared after it can be hidden as they would be when
+     * checking sequentially, along with the scope methods are declared in.
+     * Otherwise, {@code null}.
+     */
+    private final Map<Environment.Function, Integer> positions;
+    private int position;
+    private final Scope declarations;
+
+    /**
+     * The number of fields analyzed so far, and the number of slots in use by
+     * the variables in scope and the most used at once in the method being
+     * analyzed, from which each variable is given its address (see {@link
+     * Environment.Variable#getDepth()}). The slots of a block's variables are
+     * reused once it ends.
+     */
+    private int fieldCount;
+    private int slots;
+    private int frameSize;
+
     public Analyzer(Scope parent) {
         scope = new Scope(parent);
         scope.defineFunction("print", "System.out.println", Arrays.asList(Environment.Type.ANY), Environment.Type.NIL, args -> Environment.NIL);
+        positions = null;
+        declarations = null;
+    }
+
+    private Analyzer(Scope scope, Map<Environment.Function, Integer> positions) {
+        this.scope = scope;
+        this.positions = positions;
+        this.declarations = scope;
     }
 
     public Scope getScope() {
@@ -30,6 +69,112 @@ public final class Analyzer implements Ast.Visitor<Void> {
         for (Ast.Method m : ast.getMethods()) {
             visit(m);
         }
+        checkMain();
+        return null;
+    }
+
+    /**
+     * Analyzes the source held in the given arena as in {@link
+     * #visit(Ast.Source)}, and returns an arena holding it analyzed (see
+     * {@link AstArena#ofAnalyzed(Ast.Source)}). The nodes of each field and
+     * method are created from the arena and added to the analyzed arena one at
+     * a time, so the whole source is never held as nodes.
+     */
+    public AstArena visit(AstArena arena) {
+        AstArena analyzed = new AstArena(true);
+        for (int i = 0; i < arena.getFieldCount(); i++) {
+            Ast.Field field = (Ast.Field) arena.decode(arena.getField(i));
+            visit(field);
+            analyzed.add(field);
+        }
+        for (int i = 0; i < arena.getMethodCount(); i++) {
+            Ast.Method method = (Ast.Method) arena.decode(arena.getMethod(i));
+            visit(method);
+            analyzed.add(method);
+        }
+        analyzed.trim();
+        checkMain();
+        return analyzed;
+    }
+
+    /**
+     * Analyzes the source as in {@link #visit(Ast.Source)}, but checks method
+     * bodies in parallel on the given pool.
+     *
+     * The fields and then the signatures of every method are analyzed first,
+     * in order. Batches of consecutive method bodies are then checked on the
+     * pool, each by its own analyzer in a child scope of this one, which is
+     * only read. A body does not see functions declared by later methods,
+     * exactly as when checking sequentially. Batches are collected in source
+     * order, so the annotations and the first exception are the same as
+     * {@link #visit(Ast.Source)}, though on an exception, methods after the
+     * one that failed may also have been annotated.
+     */
+    public Void visitParallel(Ast.Source ast, ForkJoinPool pool) {
+        return visitParallel(ast, pool, 4 * pool.getParallelism());
+    }
+
+    Void visitParallel(Ast.Source ast, ForkJoinPool pool, int count) {
+        for (Ast.Field f : ast.getFields()) {
+            visit(f);
+        }
+        List<Ast.Method> methods = ast.getMethods();
+        Map<Environment.Function, Integer> positions = new IdentityHashMap<>();
+        RuntimeException error = null;
+        int declared = 0;
+        // a method whose signature fails is reported after the bodies of the
+        // methods before it, as sequentially
+        for (; declared < methods.size(); declared++) {
+            try {
+                positions.put(declare(methods.get(declared)), declared);
+            } catch (RuntimeException e) {
+                error = e;
+                break;
+            }
+        }
+        int batch = Math.max(1, (declared + count - 1) / count);
+        // each batch returns its first exception rather than throwing it, so
+        // the original is thrown here instead of a copy made by the pool
+        List<Callable<RuntimeException>> batches = new ArrayList<>();
+        for (int from = 0; from < declared; from += batch) {
+            Analyzer analyzer = new Analyzer(scope, positions);
+            int first = from;
+            int last = Math.min(from + batch, declared) - 1;
+            batches.add(() -> {
+                try {
+                    for (int i = first; i <= last; i++) {
+                        analyzer.position = i;
+                        analyzer.analyzeBody(methods.get(i));
+                    }
+                    return null;
+                } catch (RuntimeException e) {
+                    return e;
+                }
+            });
+        }
+        try {
+            for (Future<RuntimeException> result : pool.invokeAll(batches)) {
+                if (result.get() != null) {
+                    throw result.get();
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while analyzing.", e);
+        }
+        if (error != null) {
+            throw error;
+        }
+        checkMain();
+        return null;
+    }
+
+    private void checkMain() {
         Environment.Function mainFunc;
         try {
             mainFunc = scope.lookupFunction("main", 0);
@@ -39,7 +184,6 @@ public final class Analyzer implements Ast.Visitor<Void> {
         if (mainFunc.getReturnType() != Environment.Type.INTEGER) {
             throw new RuntimeException("main must return Integer");
         }
-        return null;
     }
 
     @Override
@@ -52,13 +196,24 @@ public final class Analyzer implements Ast.Visitor<Void> {
             throw new RuntimeException("const field needs init");
         }
         Environment.Variable v = scope.defineVariable(ast.getName(), ast.getName(), t, ast.getConstant(), Environment.NIL);
+        v.setAddress(0, fieldCount++);
         ast.setVariable(v);
         return null;
     }
 
     @Override
     public Void visit(Ast.Method ast) {
-        List<Environment.Type> pts = new java.util.ArrayList<>();
+        declare(ast);
+        analyzeBody(ast);
+        return null;
+    }
+
+    /**
+     * Defines the function of a method from its signature, which makes it
+     * visible to its own body and every later method.
+     */
+    private Environment.Function declare(Ast.Method ast) {
+        List<Environment.Type> pts = new ArrayList<>();
         for (String tn : ast.getParameterTypeNames()) {
             pts.add(Environment.getType(tn));
         }
@@ -68,14 +223,20 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
         Environment.Function fn = scope.defineFunction(ast.getName(), ast.getName(), pts, rt, args -> Environment.NIL);
         ast.setFunction(fn);
+        return fn;
+    }
 
+    private void analyzeBody(Ast.Method ast) {
+        List<Environment.Type> pts = ast.getFunction().getParameterTypes();
         Scope old = scope;
         scope = new Scope(old);
+        slots = 0;
         for (int i = 0; i < ast.getParameters().size(); i++) {
             String p = ast.getParameters().get(i);
             Environment.Type t = pts.get(i);
-            scope.defineVariable(p, p, t, false, Environment.NIL);
+            scope.defineVariable(p, p, t, false, Environment.NIL).setAddress(1, slots++);
         }
+        frameSize = slots;
 
         Ast.Method prev = method;
         method = ast;
@@ -84,7 +245,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
         }
         method = prev;
         scope = old;
-        return null;
+        ast.setFrameSize(frameSize);
     }
 
     @Override
@@ -119,6 +280,8 @@ public final class Analyzer implements Ast.Visitor<Void> {
         }
 
         Environment.Variable v = scope.defineVariable(ast.getName(), ast.getName(), t, false, Environment.NIL);
+        v.setAddress(1, slots++);
+        frameSize = Math.max(frameSize, slots);
         ast.setVariable(v);
         return null;
     }
@@ -149,11 +312,13 @@ public final class Analyzer implements Ast.Visitor<Void> {
         }
 
         Scope old = scope;
+        int used = slots;
         scope = new Scope(old);
         for (Ast.Statement s : ast.getThenStatements()) {
             visit(s);
         }
         scope = old;
+        slots = used;
 
         if (!ast.getElseStatements().isEmpty()) {
             Scope old2 = scope;
@@ -162,6 +327,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 visit(s);
             }
             scope = old2;
+            slots = used;
         }
         return null;
     }
@@ -169,6 +335,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Statement.For ast) {
         Scope old = scope;
+        int used = slots;
         scope = new Scope(old);
 
         Environment.Type loopType = null;
@@ -211,6 +378,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
         }
 
         scope = old;
+        slots = used;
         return null;
     }
 
@@ -221,11 +389,13 @@ public final class Analyzer implements Ast.Visitor<Void> {
             throw new RuntimeException("while cond not boolean");
         }
         Scope old = scope;
+        int used = slots;
         scope = new Scope(old);
         for (Ast.Statement s : ast.getStatements()) {
             visit(s);
         }
         scope = old;
+        slots = used;
         return null;
     }
 
@@ -280,19 +450,64 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Expression.Group ast) {
-        visit(ast.getExpression());
+        analyzeOperators(ast);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Binary ast) {
+        analyzeOperators(ast);
+        return null;
+    }
+
+    /**
+     * Analyzes a tree of binary and group expressions using an explicit stack
+     * instead of recursion, so long operator chains and deeply nested groups
+     * do not overflow the Java stack. Each node is popped twice: first to push
+     * its operands, and again to check it once they have been analyzed, which
+     * analyzes the operands in the same order as recursion would. Any other
+     * expression is analyzed with {@link #visit(Ast)}.
+     */
+    private void analyzeOperators(Ast.Expression root) {
+        Deque<Ast.Expression> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            Ast.Expression node = nodes.pop();
+            if (expanded.pop()) {
+                if (node instanceof Ast.Expression.Binary) {
+                    checkBinary((Ast.Expression.Binary) node);
+                } else {
+                    checkGroup((Ast.Expression.Group) node);
+                }
+            } else if (node instanceof Ast.Expression.Binary) {
+                nodes.push(node);
+                expanded.push(true);
+                nodes.push(((Ast.Expression.Binary) node).getRight());
+                expanded.push(false);
+                nodes.push(((Ast.Expression.Binary) node).getLeft());
+                expanded.push(false);
+            } else if (node instanceof Ast.Expression.Group) {
+                nodes.push(node);
+                expanded.push(true);
+                nodes.push(((Ast.Expression.Group) node).getExpression());
+                expanded.push(false);
+            } else {
+                visit(node);
+            }
+        }
+    }
+
+    private void checkGroup(Ast.Expression.Group ast) {
         if (!(ast.getExpression() instanceof Ast.Expression.Binary)) {
             throw new RuntimeException("group must wrap binary");
         }
         ast.setType(ast.getExpression().getType());
-        return null;
     }
 
-    @Override
-    public Void visit(Ast.Expression.Binary ast) {
+    private void checkBinary(Ast.Expression.Binary ast) {
         String op = ast.getOperator();
-        visit(ast.getLeft());
-        visit(ast.getRight());
         Environment.Type lt = ast.getLeft().getType();
         Environment.Type rt = ast.getRight().getType();
 
@@ -301,7 +516,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 throw new RuntimeException("logic types");
             }
             ast.setType(Environment.Type.BOOLEAN);
-            return null;
+            return;
         }
 
         if (op.equals("<") || op.equals("<=") || op.equals(">") || op.equals(">=")) {
@@ -315,7 +530,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 throw new RuntimeException("compare types");
             }
             ast.setType(Environment.Type.BOOLEAN);
-            return null;
+            return;
         }
 
         if (op.equals("==") || op.equals("!=")) {
@@ -323,22 +538,22 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 throw new RuntimeException("compare types");
             }
             ast.setType(Environment.Type.BOOLEAN);
-            return null;
+            return;
         }
 
         if (op.equals("+")) {
             if (lt == Environment.Type.STRING || rt == Environment.Type.STRING) {
                 ast.setType(Environment.Type.STRING);
-                return null;
+                return;
             }
             if (lt == Environment.Type.INTEGER) {
                 if (rt != Environment.Type.INTEGER) throw new RuntimeException("add types");
                 ast.setType(Environment.Type.INTEGER);
-                return null;
+                return;
             } else if (lt == Environment.Type.DECIMAL) {
                 if (rt != Environment.Type.DECIMAL) throw new RuntimeException("add types");
                 ast.setType(Environment.Type.DECIMAL);
-                return null;
+                return;
             } else {
                 throw new RuntimeException("add types");
             }
@@ -348,11 +563,11 @@ public final class Analyzer implements Ast.Visitor<Void> {
             if (lt == Environment.Type.INTEGER) {
                 if (rt != Environment.Type.INTEGER) throw new RuntimeException("arith types");
                 ast.setType(Environment.Type.INTEGER);
-                return null;
+                return;
             } else if (lt == Environment.Type.DECIMAL) {
                 if (rt != Environment.Type.DECIMAL) throw new RuntimeException("arith types");
                 ast.setType(Environment.Type.DECIMAL);
-                return null;
+                return;
             } else {
                 throw new RuntimeException("arith types");
             }
@@ -385,7 +600,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
             f = r.getType().getFunction(ast.getName(), ast.getArguments().size());
             offset = 1;
         } else {
-            f = scope.lookupFunction(ast.getName(), ast.getArguments().size());
+            f = lookupFunction(ast.getName(), ast.getArguments().size());
         }
         ast.setFunction(f);
 
@@ -398,6 +613,24 @@ public final class Analyzer implements Ast.Visitor<Void> {
         return null;
     }
 
+    /**
+     * Looks up a function as {@link Scope#lookupFunction(String, int)} would
+     * at this point of sequential analysis: when checking in parallel, every
+     * method is already declared, so a function declared by a later method is
+     * skipped in favor of the scopes outside the one methods are declared in.
+     */
+    private Environment.Function lookupFunction(String name, int arity) {
+        Environment.Function function = scope.lookupFunction(name, arity);
+        Integer declared = positions == null ? null : positions.get(function);
+        if (declared != null && declared > position) {
+            if (declarations.getParent() == null) {
+                throw new RuntimeException("The function " + name + "/" + arity + " is not defined in this scope.");
+            }
+            return declarations.getParent().lookupFunction(name, arity);
+        }
+        return function;
+    }
+
     public static void requireAssignable(Environment.Type target, Environment.Type type) {
         if (target == type) return;
         if (target == Environment.Type.ANY) return;
@@ -1,9 +1,11 @@
 package plc.project;
 
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * See each project assignment specification for specific notes on the AST classes
@@ -11,6 +13,12 @@ import java.util.Optional;
  */
 public abstract class Ast {
 
+    /**
+     * Calls the {@link Visitor} method for the type of this node, so visiting a
+     * node is a single virtual call rather than a chain of type checks.
+     */
+    public abstract <T> T accept(Visitor<T> visitor);
+
     public static final class Source extends Ast {
 
         private final List<Field> fields;
@@ -29,6 +37,11 @@ public abstract class Ast {
             return methods;
         }
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Source &&
@@ -94,6 +107,11 @@ public abstract class Ast {
         }
 
 
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Field &&
@@ -123,8 +141,11 @@ public abstract class Ast {
         private final List<String> parameters;
         private final List<String> parameterTypeNames;
         private final Optional<String> returnTypeName;
-        private final List<Statement> statements;
+        private volatile List<Statement> statements;
+        private Supplier<List<Statement>> body;
+        private volatile SoftReference<List<Statement>> reloadable;
         private Environment.Function function = null;
+        private int frameSize = -1;
         
         public Method(String name, List<String> parameters, List<Statement> statements) {
             this(name, parameters, new ArrayList<>(), Optional.of("Any"), statements);
@@ -142,6 +163,30 @@ public abstract class Ast {
             this.statements = statements;
         }
 
+        /**
+         * Creates a method whose statements are produced by the given supplier
+         * the first time they are needed, which the parser uses to parse
+         * method bodies lazily.
+         */
+        public Method(String name, List<String> parameters, List<String> parameterTypeNames, Optional<String> returnTypeName, Supplier<List<Statement>> body) {
+            this(name, parameters, parameterTypeNames, returnTypeName, (List<Statement>) null);
+            this.body = body;
+        }
+
+        /**
+         * Creates a method whose statements are produced by the given supplier
+         * whenever they are needed and only held softly in between, so they
+         * may be dropped when memory runs low and produced again on the next
+         * use. The supplier must give equal statements every time, as {@link
+         * AstArena#toSource()} does for an analyzed arena.
+         */
+        Method(String name, List<String> parameters, List<String> parameterTypeNames, Optional<String> returnTypeName, Supplier<List<Statement>> body, boolean retained) {
+            this(name, parameters, parameterTypeNames, returnTypeName, body);
+            if (!retained) {
+                reloadable = new SoftReference<>(null);
+            }
+        }
+
         public String getName() {
             return name;
         }
@@ -158,10 +203,56 @@ public abstract class Ast {
             return returnTypeName;
         }
 
+        /**
+         * Returns the statements, parsing them first if the body is lazy.
+         * Several threads may call this at once, and the body is parsed only
+         * once. If it has a syntax error, the {@link ParseException} is thrown
+         * here (on every call).
+         */
         public List<Statement> getStatements() {
+            if (reloadable != null) {
+                return getReloadableStatements();
+            }
+            List<Statement> statements = this.statements;
+            if (statements == null) {
+                synchronized (this) {
+                    statements = this.statements;
+                    if (statements == null) {
+                        statements = body.get();
+                        this.statements = statements;
+                        body = null;
+                    }
+                }
+            }
+            return statements;
+        }
+
+        private List<Statement> getReloadableStatements() {
+            List<Statement> statements = reloadable.get();
+            if (statements == null) {
+                synchronized (this) {
+                    statements = reloadable.get();
+                    if (statements == null) {
+                        statements = body.get();
+                        reloadable = new SoftReference<>(statements);
+                    }
+                }
+            }
             return statements;
         }
 
+        /**
+         * Returns the statements, or {@code null} if the body is lazy and has
+         * a syntax error, so {@code equals} and {@code toString} never throw.
+         */
+        private List<Statement> getValidStatements() {
+            try {
+                return getStatements();
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+
         public Environment.Function getFunction() {
             if (function == null) {
                 throw new IllegalStateException("function is uninitialized");
@@ -173,27 +264,52 @@ public abstract class Ast {
             this.function = function;
         }
 
+        /**
+         * Returns the number of slots the {@link Analyzer} gave the parameters
+         * and local variables of this method, which is the size of the frame
+         * the {@link Interpreter} allocates for each call, or -1 if the method
+         * has not been analyzed.
+         */
+        public int getFrameSize() {
+            return frameSize;
+        }
+
+        public void setFrameSize(int frameSize) {
+            this.frameSize = frameSize;
+        }
+
+        @Override
+        public <T> T accept(Visitor<T> visitor) {
+            return visitor.visit(this);
+        }
 
         @Override
         public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            // a body with a syntax error is only equal to itself
+            List<Statement> statements = getValidStatements();
             return obj instanceof Ast.Method &&
                     name.equals(((Ast.Method) obj).name) &&
                     parameters.equals(((Ast.Method) obj).parameters) &&
                     parameterTypeNames.equals(((Ast.Method) obj).parameterTypeNames) &&
                     returnTypeName.equals(((Ast.Method) obj).returnTypeName) &&
-                    statements.equals(((Ast.Method) obj).statements) &&
+                    statements != null &&
+                    statements.equals(((Ast.Method) obj).getValidStatements()) &&
                     Objects.equals(function, ((Ast.Method) obj).function);
         }
 
 
         @Override
         public String toString() {
+            List<Statement> statements = getValidStatements();
             return "Method{" +
                     "name='" + name + '\'' +
                     ", parameters=" + parameters +
                     ", parameterTypeNames=" + parameterTypeNames +
                     ", returnTypeName='" + returnTypeName + '\'' +
-                    ", statements=" + statements +
+                    ", statements=" + (statements != null ? statements : "(syntax error)") +
                     ", function=" + function +
                     '}';
         }
@@ -214,6 +330,11 @@ public abstract class Ast {
                 return expression;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Ast.Statement.Expression &&
@@ -270,6 +391,11 @@ public abstract class Ast {
             }
             
             
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Declaration &&
@@ -309,6 +435,11 @@ public abstract class Ast {
                 return value;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Assignment &&
@@ -351,6 +482,11 @@ public abstract class Ast {
                 return elseStatements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof If &&
@@ -400,6 +536,11 @@ public abstract class Ast {
                 return statements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
 
@@ -460,6 +601,11 @@ public abstract class Ast {
                 return statements;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof While &&
@@ -489,6 +635,11 @@ public abstract class Ast {
                 return value;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Return &&
@@ -508,14 +659,35 @@ public abstract class Ast {
 
     public static abstract class Expression extends Ast {
 
+        private final int hash;
+
+        Expression(int hash) {
+            this.hash = hash;
+        }
+
         public abstract Environment.Type getType();
 
+        /**
+         * Returns a hash of the structure of this expression, which ignores
+         * the type, variable, or function set by the {@link Analyzer} so it is
+         * consistent with {@code equals} before and after analysis. The hash
+         * is computed once, from the hashes of the children, when the
+         * expression is created, so it never recurses into deep expressions.
+         * This requires expressions (including lists of arguments) to not be
+         * changed once created, which the parser and analyzer never do.
+         */
+        @Override
+        public final int hashCode() {
+            return hash;
+        }
+
         public static final class Literal extends Ast.Expression {
 
             private final Object literal;
             private Environment.Type type = null;
             
             public Literal(Object literal) {
+                super(Objects.hashCode(literal));
                 this.literal = literal;
             }
 
@@ -535,6 +707,11 @@ public abstract class Ast {
                 this.type = type;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Literal &&
@@ -558,6 +735,7 @@ public abstract class Ast {
             private Environment.Type type = null;
 
             public Group(Ast.Expression expression) {
+                super(31 * expression.hashCode() + 1);
                 this.expression = expression;
             }
 
@@ -578,6 +756,11 @@ public abstract class Ast {
             }
 
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Group &&
@@ -604,6 +787,7 @@ public abstract class Ast {
             private Environment.Type type = null;
 
             public Binary(String operator, Ast.Expression left, Ast.Expression right) {
+                super(31 * (31 * (31 * operator.hashCode() + left.hashCode()) + right.hashCode()) + 2);
                 this.operator = operator;
                 this.left = left;
                 this.right = right;
@@ -633,6 +817,11 @@ public abstract class Ast {
                 this.type = type;
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Binary &&
@@ -662,6 +851,7 @@ public abstract class Ast {
             private Environment.Variable variable = null;
 
             public Access(Optional<Ast.Expression> receiver, String name) {
+                super(31 * (31 * receiver.hashCode() + name.hashCode()) + 3);
                 this.receiver = receiver;
                 this.name = name;
             }
@@ -690,6 +880,11 @@ public abstract class Ast {
                 return getVariable().getType();
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Access &&
@@ -716,8 +911,10 @@ public abstract class Ast {
             private final String name;
             private final List<Ast.Expression> arguments;
             private Environment.Function function = null;
+            private Interpreter.CallSite callSite = null;
 
             public Function(Optional<Ast.Expression> receiver, String name, List<Ast.Expression> arguments) {
+                super(31 * (31 * (31 * receiver.hashCode() + name.hashCode()) + arguments.hashCode()) + 4);
                 this.receiver = receiver;
                 this.name = name;
                 this.arguments = arguments;
@@ -746,11 +943,29 @@ public abstract class Ast {
                 this.function = function;
             }
 
+            /**
+             * Returns the function the {@link Interpreter} last called here,
+             * or {@code null}. This is not part of the expression, so it is
+             * not compared by {@code equals}.
+             */
+            Interpreter.CallSite getCallSite() {
+                return callSite;
+            }
+
+            void setCallSite(Interpreter.CallSite callSite) {
+                this.callSite = callSite;
+            }
+
             @Override
             public Environment.Type getType() {
                 return getFunction().getReturnType();
             }
 
+            @Override
+            public <T> T accept(Visitor<T> visitor) {
+                return visitor.visit(this);
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Ast.Expression.Function &&
@@ -777,39 +992,7 @@ public abstract class Ast {
     public interface Visitor<T> {
 
         default T visit(Ast ast) {
-            if (ast instanceof Ast.Source) {
-                return visit((Ast.Source) ast);
-            } else if (ast instanceof Ast.Field) {
-                return visit((Ast.Field) ast);
-            } else if (ast instanceof Ast.Method) {
-                return visit((Ast.Method) ast);
-            } else if (ast instanceof Ast.Statement.Expression) {
-                return visit((Ast.Statement.Expression) ast);
-            } else if (ast instanceof Ast.Statement.Declaration) {
-                return visit((Ast.Statement.Declaration) ast);
-            } else if (ast instanceof Ast.Statement.Assignment) {
-                return visit((Ast.Statement.Assignment) ast);
-            } else if (ast instanceof Ast.Statement.If) {
-                return visit((Ast.Statement.If) ast);
-            } else if (ast instanceof Ast.Statement.For) {
-                return visit((Ast.Statement.For) ast);
-            } else if (ast instanceof Ast.Statement.While) {
-                return visit((Ast.Statement.While) ast);
-            } else if (ast instanceof Ast.Statement.Return) {
-                return visit((Ast.Statement.Return) ast);
-            } else if (ast instanceof Ast.Expression.Literal) {
-                return visit((Ast.Expression.Literal) ast);
-            } else if (ast instanceof Ast.Expression.Group) {
-                return visit((Ast.Expression.Group) ast);
-            } else if (ast instanceof Ast.Expression.Binary) {
-                return visit((Ast.Expression.Binary) ast);
-            } else if (ast instanceof Ast.Expression.Access) {
-                return visit((Ast.Expression.Access) ast);
-            } else if (ast instanceof Ast.Expression.Function) {
-                return visit((Ast.Expression.Function) ast);
-            } else {
-                throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
-            }
+            return ast.accept(this);
         }
 
         T visit(Ast.Source ast);
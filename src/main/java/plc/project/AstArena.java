@@ -0,0 +1,1257 @@
+package plc.project;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A compact store for the AST of a source, kept as records in a single int
+ * array plus pools of the distinct names and literals, in place of an object
+ * per node. A node is identified by the position of its record, and is read
+ * through the accessors here, much like a token of a {@link TokenBuffer}.
+ *
+ * Each record is the node's {@link Kind} and number of children, a value and
+ * an extra int whose meaning depends on the kind (such as the pool index of a
+ * name), and the positions of its children in source order, with absent
+ * optional children omitted. Records are laid out in pre-order, so a node and
+ * its descendants are contiguous. A method record is followed by its
+ * parameters, as pairs of name and type name pool indexes.
+ *
+ * The records can be walked with an {@link AstArena.Visitor}, which is given
+ * the position of each node rather than an object. The {@link Ast.Visitor}s
+ * work on {@link Ast} nodes instead, so {@link #accept(int, Ast.Visitor)}
+ * creates those of the given node and its descendants for the visit, and
+ * {@link #toSource()} creates the statements of each method when they are
+ * used. The {@link Analyzer} can also analyze an arena with {@link
+ * Analyzer#visit(AstArena)}, which creates the nodes of one field or method at
+ * a time and gives back an analyzed arena.
+ *
+ * An arena created by {@link #ofAnalyzed(Ast.Source)} also holds what the
+ * {@link Analyzer} resolved: each record of a node with a variable, function,
+ * or type has one more int after the rest of the record, indexing into tables
+ * of the distinct variables, functions, and types. The created nodes have
+ * these set, sharing a variable or function wherever the analyzed nodes did,
+ * along with the addresses of the variables and the frame size of each method.
+ * As the records hold all of that, {@link #toSource()} only holds the
+ * statements of each method softly, so the {@link Interpreter} and {@link
+ * Generator} can run over an analyzed arena without keeping the whole source
+ * as nodes. Such an arena can be written to a file with {@link #write(Path)}
+ * and read back with {@link #read(Path)}, so an unchanged program can be
+ * loaded without lexing, parsing, or analyzing it again. An arena read back
+ * reads its records from the mapped file, and the entries of its pools and
+ * tables the first time they are used.
+ */
+public final class AstArena {
+
+    public enum Kind {
+        FIELD,
+        METHOD,
+        EXPRESSION,
+        DECLARATION,
+        ASSIGNMENT,
+        IF,
+        FOR,
+        WHILE,
+        RETURN,
+        LITERAL,
+        GROUP,
+        BINARY,
+        ACCESS,
+        FUNCTION
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    /*
+     * Flags for the extra int of a FOR record, which has its initialization
+     * and increment as children only if they are present.
+     */
+    private static final int INITIALIZATION = 1;
+    private static final int INCREMENT = 2;
+
+    private static final int MAGIC = 0x504C4341;
+    private static final int VERSION = 3;
+
+    /*
+     * Tags of the literals in a written arena.
+     */
+    private static final int NIL = 0;
+    private static final int BOOLEAN = 1;
+    private static final int CHARACTER = 2;
+    private static final int STRING = 3;
+    private static final int INTEGER = 4;
+    private static final int DECIMAL = 5;
+
+    /*
+     * The placeholder for a literal not yet read from the file, as null is the
+     * literal NIL.
+     */
+    private static final Object UNRESOLVED = new Object();
+
+    /*
+     * The built in types, whose fields and methods are written as a reference
+     * to the type rather than by value.
+     */
+    private static final Environment.Type[] BUILT_IN = {Environment.Type.ANY, Environment.Type.NIL,
+            Environment.Type.COMPARABLE, Environment.Type.BOOLEAN, Environment.Type.INTEGER,
+            Environment.Type.DECIMAL, Environment.Type.CHARACTER, Environment.Type.STRING};
+
+    private final boolean analyzed;
+
+    /*
+     * The records are written to code while the arena is built, and read
+     * through records, which is a view of either code or the mapped file.
+     */
+    private int[] code = new int[64];
+    private IntBuffer records = IntBuffer.wrap(code);
+    private int size = 0;
+    private int[] fields = new int[8];
+    private int fieldCount = 0;
+    private int[] methods = new int[8];
+    private int methodCount = 0;
+    /*
+     * The frame size of each method of an analyzed arena, at the same index
+     * as the method.
+     */
+    private int[] frameSizes = new int[8];
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndexes = new HashMap<>();
+    private final List<Object> literals = new ArrayList<>();
+    private final Map<Object, Integer> literalIndexes = new HashMap<>();
+    private final List<Environment.Type> types = new ArrayList<>();
+    private final Map<Environment.Type, Integer> typeIndexes = new IdentityHashMap<>();
+    private final List<Environment.Variable> variables = new ArrayList<>();
+    private final Map<Environment.Variable, Integer> variableIndexes = new IdentityHashMap<>();
+    private final List<Environment.Function> functions = new ArrayList<>();
+    private final Map<Environment.Function, Integer> functionIndexes = new IdentityHashMap<>();
+
+    /*
+     * For an arena read by read(Path), the mapped file and the positions in it
+     * of the pools and tables, whose entries are only read from it the first
+     * time they are used. The lists above then hold null (or UNRESOLVED, for a
+     * literal) until then. For any other arena, file is null.
+     */
+    private ByteBuffer file;
+    private int namePositions;
+    private int literalPositions;
+    private int typeTable;
+    private int variableTable;
+    private int functionPositions;
+    private int data;
+
+    AstArena() {
+        this(false);
+    }
+
+    AstArena(boolean analyzed) {
+        this.analyzed = analyzed;
+    }
+
+    /**
+     * Creates an arena holding the given source. {@link
+     * Parser#parseSourceArena()} creates one while parsing instead, so the
+     * whole source is never held as {@link Ast} nodes.
+     */
+    public static AstArena of(Ast.Source source) {
+        return of(new AstArena(), source);
+    }
+
+    /**
+     * Creates an arena holding the given source and what the {@link Analyzer}
+     * resolved for it, which must already be analyzed.
+     */
+    public static AstArena ofAnalyzed(Ast.Source source) {
+        return of(new AstArena(true), source);
+    }
+
+    private static AstArena of(AstArena arena, Ast.Source source) {
+        for (Ast.Field field : source.getFields()) {
+            arena.add(field);
+        }
+        for (Ast.Method method : source.getMethods()) {
+            arena.add(method);
+        }
+        arena.trim();
+        return arena;
+    }
+
+    void add(Ast.Field field) {
+        if (fieldCount == fields.length) {
+            fields = Arrays.copyOf(fields, 2 * fieldCount);
+        }
+        fields[fieldCount++] = encode(field);
+    }
+
+    void add(Ast.Method method) {
+        if (methodCount == methods.length) {
+            methods = Arrays.copyOf(methods, 2 * methodCount);
+            frameSizes = Arrays.copyOf(frameSizes, 2 * methodCount);
+        }
+        frameSizes[methodCount] = analyzed ? method.getFrameSize() : -1;
+        methods[methodCount++] = encode(method);
+    }
+
+    /**
+     * Releases the unused capacity of the records and tables once nothing
+     * more will be added.
+     */
+    void trim() {
+        code = Arrays.copyOf(code, size);
+        records = IntBuffer.wrap(code);
+        fields = Arrays.copyOf(fields, fieldCount);
+        methods = Arrays.copyOf(methods, methodCount);
+        frameSizes = Arrays.copyOf(frameSizes, methodCount);
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public int getField(int index) {
+        return fields[Objects.checkIndex(index, fieldCount)];
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    public int getMethod(int index) {
+        return methods[Objects.checkIndex(index, methodCount)];
+    }
+
+    public Kind getKind(int node) {
+        return KINDS[records.get(node) & 0xF];
+    }
+
+    public int getChildCount(int node) {
+        return records.get(node) >>> 4;
+    }
+
+    public int getChild(int node, int index) {
+        if (index < 0 || index >= getChildCount(node)) {
+            throw new IndexOutOfBoundsException("Child index " + index + " out of bounds for node " + node + ".");
+        }
+        return records.get(node + 3 + index);
+    }
+
+    /**
+     * Returns the name of a field, method, declaration, access, or function,
+     * or the operator of a binary expression.
+     */
+    public String getName(int node) {
+        switch (getKind(node)) {
+            case FIELD: case METHOD: case DECLARATION: case BINARY: case ACCESS: case FUNCTION:
+                return nameAt(records.get(node + 1));
+            default:
+                throw new IllegalArgumentException("Node " + node + " (" + getKind(node) + ") has no name.");
+        }
+    }
+
+    /**
+     * Returns the type name of a field or declaration, or the return type name
+     * of a method, or null if a declaration or method has none.
+     */
+    public String getTypeName(int node) {
+        switch (getKind(node)) {
+            case FIELD:
+                return nameAt(records.get(node + 2) >> 1);
+            case DECLARATION: case METHOD:
+                return records.get(node + 2) < 0 ? null : nameAt(records.get(node + 2));
+            default:
+                throw new IllegalArgumentException("Node " + node + " (" + getKind(node) + ") has no type name.");
+        }
+    }
+
+    public boolean isConstant(int field) {
+        check(field, Kind.FIELD);
+        return (records.get(field + 2) & 1) != 0;
+    }
+
+    public Object getLiteral(int node) {
+        check(node, Kind.LITERAL);
+        return literalAt(records.get(node + 1));
+    }
+
+    public int getParameterCount(int method) {
+        check(method, Kind.METHOD);
+        return records.get(method + 3 + getChildCount(method));
+    }
+
+    public String getParameter(int method, int index) {
+        return nameAt(records.get(parameter(method, index)));
+    }
+
+    public String getParameterTypeName(int method, int index) {
+        return nameAt(records.get(parameter(method, index) + 1));
+    }
+
+    /**
+     * Returns the number of then statements of an if statement, which are the
+     * children after the condition and before the else statements.
+     */
+    public int getThenCount(int node) {
+        check(node, Kind.IF);
+        return records.get(node + 2);
+    }
+
+    /**
+     * Returns true if a for statement has an initialization, which is then
+     * its first child.
+     */
+    public boolean hasInitialization(int node) {
+        check(node, Kind.FOR);
+        return (records.get(node + 2) & INITIALIZATION) != 0;
+    }
+
+    /**
+     * Returns true if a for statement has an increment, which is then the
+     * child after the condition.
+     */
+    public boolean hasIncrement(int node) {
+        check(node, Kind.FOR);
+        return (records.get(node + 2) & INCREMENT) != 0;
+    }
+
+    /**
+     * Returns true if an access or function has a receiver, which is then its
+     * first child.
+     */
+    public boolean hasReceiver(int node) {
+        if (getKind(node) != Kind.ACCESS) {
+            check(node, Kind.FUNCTION);
+        }
+        return records.get(node + 2) != 0;
+    }
+
+    /**
+     * Visits the records of an arena by the position of each node, reading
+     * them through the accessors of the arena rather than creating {@link Ast}
+     * nodes. There is a method for each {@link Kind}.
+     */
+    public interface Visitor<T> {
+
+        T visitField(int node);
+
+        T visitMethod(int node);
+
+        T visitExpression(int node);
+
+        T visitDeclaration(int node);
+
+        T visitAssignment(int node);
+
+        T visitIf(int node);
+
+        T visitFor(int node);
+
+        T visitWhile(int node);
+
+        T visitReturn(int node);
+
+        T visitLiteral(int node);
+
+        T visitGroup(int node);
+
+        T visitBinary(int node);
+
+        T visitAccess(int node);
+
+        T visitFunction(int node);
+
+    }
+
+    /**
+     * Calls the {@link AstArena.Visitor} method for the kind of the given
+     * node.
+     */
+    public <T> T accept(int node, Visitor<T> visitor) {
+        switch (getKind(node)) {
+            case FIELD: return visitor.visitField(node);
+            case METHOD: return visitor.visitMethod(node);
+            case EXPRESSION: return visitor.visitExpression(node);
+            case DECLARATION: return visitor.visitDeclaration(node);
+            case ASSIGNMENT: return visitor.visitAssignment(node);
+            case IF: return visitor.visitIf(node);
+            case FOR: return visitor.visitFor(node);
+            case WHILE: return visitor.visitWhile(node);
+            case RETURN: return visitor.visitReturn(node);
+            case LITERAL: return visitor.visitLiteral(node);
+            case GROUP: return visitor.visitGroup(node);
+            case BINARY: return visitor.visitBinary(node);
+            case ACCESS: return visitor.visitAccess(node);
+            case FUNCTION: return visitor.visitFunction(node);
+            default: throw new AssertionError(getKind(node));
+        }
+    }
+
+    /**
+     * Creates the {@link Ast} nodes for the given node and its descendants and
+     * visits them. Nothing here refers to the nodes afterwards.
+     */
+    public <T> T accept(int node, Ast.Visitor<T> visitor) {
+        return decode(node).accept(visitor);
+    }
+
+    /**
+     * Returns the source as {@link Ast} nodes, creating the statements of each
+     * method when they are used. If this arena is analyzed, they are only held
+     * softly and are created again if they were dropped, as the records hold
+     * everything set on them. Otherwise they are created once, as with {@link
+     * Parser#parseSourceLazily()}, so the {@link Analyzer} can annotate them.
+     */
+    public Ast.Source toSource() {
+        List<Ast.Field> fields = new ArrayList<>();
+        for (int i = 0; i < fieldCount; i++) {
+            fields.add((Ast.Field) decode(this.fields[i]));
+        }
+        List<Ast.Method> methods = new ArrayList<>();
+        for (int index = 0; index < methodCount; index++) {
+            int method = this.methods[index];
+            List<String> parameters = new ArrayList<>();
+            List<String> parameterTypeNames = new ArrayList<>();
+            for (int i = 0; i < getParameterCount(method); i++) {
+                parameters.add(getParameter(method, i));
+                parameterTypeNames.add(getParameterTypeName(method, i));
+            }
+            Ast.Method ast = new Ast.Method(getName(method), parameters, parameterTypeNames,
+                    Optional.ofNullable(getTypeName(method)), () -> ((Ast.Method) decode(method)).getStatements(), !analyzed);
+            if (analyzed) {
+                ast.setFunction(functionAt(records.get(method + length(method) - 1)));
+                ast.setFrameSize(frameSizes[index]);
+            }
+            methods.add(ast);
+        }
+        return new Ast.Source(fields, methods);
+    }
+
+    /**
+     * Writes this arena to the given file, in a form {@link #read(Path)} can
+     * map back with little decoding: the tables whose entries have a fixed
+     * size and the records come first, and the names, literals, and functions
+     * after them, referred to by their positions. Variables and functions of
+     * the built in types are written as references to them, and the others by
+     * value.
+     */
+    public void write(Path path) throws IOException {
+        if (file != null) {
+            load();
+        }
+        // every name the tables refer to must be in the pool before it is written
+        for (Environment.Variable variable : variables) {
+            name(variable.getName());
+            name(variable.getJvmName());
+            type(variable.getType());
+        }
+        for (Environment.Function function : functions) {
+            name(function.getName());
+            name(function.getJvmName());
+            function.getParameterTypes().forEach(this::type);
+            type(function.getReturnType());
+        }
+        for (Environment.Type type : types) {
+            name(type.getName());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(bytes);
+        int[] namePositions = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            namePositions[i] = entries.size();
+            writeString(entries, names.get(i));
+        }
+        int[] literalPositions = new int[literals.size()];
+        for (int i = 0; i < literals.size(); i++) {
+            literalPositions[i] = entries.size();
+            writeLiteral(entries, literals.get(i));
+        }
+        int[] functionPositions = new int[functions.size()];
+        for (int i = 0; i < functions.size(); i++) {
+            Environment.Function function = functions.get(i);
+            functionPositions[i] = entries.size();
+            entries.writeInt(owner(function));
+            entries.writeInt(name(function.getName()));
+            entries.writeInt(name(function.getJvmName()));
+            entries.writeInt(type(function.getReturnType()));
+            entries.writeInt(function.getParameterTypes().size());
+            for (Environment.Type type : function.getParameterTypes()) {
+                entries.writeInt(type(type));
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(analyzed ? 1 : 0);
+            writeTable(out, namePositions, namePositions.length);
+            writeTable(out, literalPositions, literalPositions.length);
+            out.writeInt(types.size());
+            for (Environment.Type type : types) {
+                out.writeInt(name(type.getName()));
+            }
+            out.writeInt(variables.size());
+            for (Environment.Variable variable : variables) {
+                out.writeInt(owner(variable));
+                out.writeInt(name(variable.getName()));
+                out.writeInt(name(variable.getJvmName()));
+                out.writeInt(type(variable.getType()));
+                out.writeInt(variable.getConstant() ? 1 : 0);
+                out.writeInt(variable.getDepth());
+                out.writeInt(variable.getSlot());
+            }
+            writeTable(out, functionPositions, functionPositions.length);
+            writeTable(out, fields, fieldCount);
+            writeTable(out, methods, methodCount);
+            for (int i = analyzed ? 0 : methodCount; i < methodCount; i++) {
+                out.writeInt(frameSizes[i]);
+            }
+            out.writeInt(size);
+            ByteBuffer records = ByteBuffer.allocate(4 * size);
+            records.asIntBuffer().put(this.records.duplicate().limit(size));
+            out.write(records.array());
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads an arena written by {@link #write(Path)}. The file is mapped into
+     * memory and the records are read from it in place, and each name,
+     * literal, type, variable, and function is only read from it the first
+     * time it is used, so reading takes little more than mapping the file.
+     * Types are looked up with {@link Environment#getType(String)}, and
+     * functions other than those of the built in types do nothing when
+     * invoked, as in the {@link Analyzer}.
+     */
+    public static AstArena read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("The file " + path + " is not a written arena.");
+            }
+            AstArena arena = new AstArena(buffer.getInt() != 0);
+            arena.file = buffer;
+            arena.namePositions = skipTable(buffer, 1, arena.names, null);
+            arena.literalPositions = skipTable(buffer, 1, arena.literals, UNRESOLVED);
+            arena.typeTable = skipTable(buffer, 1, arena.types, null);
+            arena.variableTable = skipTable(buffer, 7, arena.variables, null);
+            arena.functionPositions = skipTable(buffer, 1, arena.functions, null);
+            arena.fieldCount = buffer.getInt();
+            arena.fields = readTable(buffer, arena.fieldCount);
+            arena.methodCount = buffer.getInt();
+            arena.methods = readTable(buffer, arena.methodCount);
+            if (arena.analyzed) {
+                arena.frameSizes = readTable(buffer, arena.methodCount);
+            } else {
+                arena.frameSizes = new int[arena.methodCount];
+                Arrays.fill(arena.frameSizes, -1);
+            }
+            arena.size = buffer.getInt();
+            arena.code = null;
+            arena.records = buffer.slice().asIntBuffer();
+            arena.records.limit(arena.size);
+            buffer.position(buffer.position() + 4 * arena.size);
+            arena.data = buffer.position();
+            return arena;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("The file " + path + " is truncated.", e);
+        }
+    }
+
+    private static void writeTable(DataOutputStream out, int[] table, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(table[i]);
+        }
+    }
+
+    private static int[] readTable(ByteBuffer buffer, int count) {
+        int[] table = new int[count];
+        buffer.asIntBuffer().get(table);
+        buffer.position(buffer.position() + 4 * count);
+        return table;
+    }
+
+    /**
+     * Skips a table with the given number of ints per entry, preceded by its
+     * number of entries, and returns its position. The pool it is read into
+     * is filled with the given placeholder until each entry is used.
+     */
+    private static <T> int skipTable(ByteBuffer buffer, int width, List<T> pool, T placeholder) {
+        int count = buffer.getInt();
+        int position = buffer.position();
+        buffer.position(position + 4 * width * count);
+        pool.addAll(Collections.nCopies(count, placeholder));
+        return position;
+    }
+
+    /**
+     * Returns a buffer over the mapped file, starting at the given position.
+     */
+    private ByteBuffer at(int position) {
+        return file.duplicate().position(position);
+    }
+
+    /*
+     * The entries of the pools and tables of an arena read from a file are
+     * read the first time they are used. A variable or function must only be
+     * created once, as the nodes sharing it are compared by identity, so each
+     * is read while holding the lock of the arena.
+     */
+
+    private String nameAt(int index) {
+        if (file == null) {
+            return names.get(index);
+        }
+        synchronized (this) {
+            String name = names.get(index);
+            if (name == null) {
+                name = readString(at(data + file.getInt(namePositions + 4 * index)));
+                names.set(index, name);
+            }
+            return name;
+        }
+    }
+
+    private Object literalAt(int index) {
+        if (file == null) {
+            return literals.get(index);
+        }
+        synchronized (this) {
+            Object literal = literals.get(index);
+            if (literal == UNRESOLVED) {
+                literal = readLiteral(at(data + file.getInt(literalPositions + 4 * index)));
+                literals.set(index, literal);
+            }
+            return literal;
+        }
+    }
+
+    private Environment.Type typeAt(int index) {
+        if (file == null) {
+            return types.get(index);
+        }
+        synchronized (this) {
+            Environment.Type type = types.get(index);
+            if (type == null) {
+                type = Environment.getType(nameAt(file.getInt(typeTable + 4 * index)));
+                types.set(index, type);
+            }
+            return type;
+        }
+    }
+
+    private Environment.Variable variableAt(int index) {
+        if (file == null) {
+            return variables.get(index);
+        }
+        synchronized (this) {
+            Environment.Variable variable = variables.get(index);
+            if (variable == null) {
+                ByteBuffer entry = at(variableTable + 28 * index);
+                int owner = entry.getInt();
+                String name = nameAt(entry.getInt());
+                String jvmName = nameAt(entry.getInt());
+                Environment.Type type = typeAt(entry.getInt());
+                boolean constant = entry.getInt() != 0;
+                int depth = entry.getInt();
+                int slot = entry.getInt();
+                variable = owner < 0 ? null : BUILT_IN[owner].getScope().variables.get(name);
+                if (variable == null) {
+                    variable = new Environment.Variable(name, jvmName, type, constant, Environment.NIL);
+                    variable.setAddress(depth, slot);
+                }
+                variables.set(index, variable);
+            }
+            return variable;
+        }
+    }
+
+    private Environment.Function functionAt(int index) {
+        if (file == null) {
+            return functions.get(index);
+        }
+        synchronized (this) {
+            Environment.Function function = functions.get(index);
+            if (function == null) {
+                ByteBuffer entry = at(data + file.getInt(functionPositions + 4 * index));
+                int owner = entry.getInt();
+                String name = nameAt(entry.getInt());
+                String jvmName = nameAt(entry.getInt());
+                Environment.Type returnType = typeAt(entry.getInt());
+                List<Environment.Type> parameterTypes = new ArrayList<>();
+                for (int j = entry.getInt(); j > 0; j--) {
+                    parameterTypes.add(typeAt(entry.getInt()));
+                }
+                function = owner < 0 ? null
+                        : BUILT_IN[owner].getScope().functions.get(name + "/" + parameterTypes.size());
+                if (function == null) {
+                    function = new Environment.Function(name, jvmName, parameterTypes, returnType, args -> Environment.NIL);
+                }
+                functions.set(index, function);
+            }
+            return function;
+        }
+    }
+
+    /**
+     * Reads every entry of the pools and tables of an arena read from a file
+     * and indexes them, as when they are added, so it can be written again.
+     */
+    private synchronized void load() {
+        for (int i = 0; i < names.size(); i++) {
+            nameIndexes.putIfAbsent(nameAt(i), i);
+        }
+        for (int i = 0; i < literals.size(); i++) {
+            literalIndexes.putIfAbsent(literalAt(i), i);
+        }
+        for (int i = 0; i < types.size(); i++) {
+            typeIndexes.putIfAbsent(typeAt(i), i);
+        }
+        for (int i = 0; i < variables.size(); i++) {
+            variableIndexes.putIfAbsent(variableAt(i), i);
+        }
+        for (int i = 0; i < functions.size(); i++) {
+            functionIndexes.putIfAbsent(functionAt(i), i);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        out.writeInt(string.length());
+        out.writeChars(string);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        char[] chars = new char[buffer.getInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    private static void writeLiteral(DataOutputStream out, Object literal) throws IOException {
+        if (literal == null) {
+            out.writeInt(NIL);
+        } else if (literal instanceof Boolean) {
+            out.writeInt(BOOLEAN);
+            out.writeInt((Boolean) literal ? 1 : 0);
+        } else if (literal instanceof Character) {
+            out.writeInt(CHARACTER);
+            out.writeInt((Character) literal);
+        } else if (literal instanceof String) {
+            out.writeInt(STRING);
+            writeString(out, (String) literal);
+        } else if (literal instanceof BigInteger) {
+            out.writeInt(INTEGER);
+            byte[] bytes = ((BigInteger) literal).toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (literal instanceof BigDecimal) {
+            out.writeInt(DECIMAL);
+            out.writeInt(((BigDecimal) literal).scale());
+            byte[] bytes = ((BigDecimal) literal).unscaledValue().toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            throw new IllegalArgumentException("Unsupported literal " + literal + ".");
+        }
+    }
+
+    private static Object readLiteral(ByteBuffer buffer) {
+        int tag = buffer.getInt();
+        switch (tag) {
+            case NIL:
+                return null;
+            case BOOLEAN:
+                return buffer.getInt() != 0;
+            case CHARACTER:
+                return (char) buffer.getInt();
+            case STRING:
+                return readString(buffer);
+            case INTEGER:
+                return new BigInteger(readBytes(buffer));
+            case DECIMAL: {
+                int scale = buffer.getInt();
+                return new BigDecimal(new BigInteger(readBytes(buffer)), scale);
+            }
+            default:
+                throw new IllegalStateException("Unknown literal tag " + tag + ".");
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the index in {@link #BUILT_IN} of the type the given variable is
+     * a field of, or -1 if it is not a field of a built in type.
+     */
+    private static int owner(Environment.Variable variable) {
+        for (int i = 0; i < BUILT_IN.length; i++) {
+            if (BUILT_IN[i].getScope().variables.get(variable.getName()) == variable) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int owner(Environment.Function function) {
+        for (int i = 0; i < BUILT_IN.length; i++) {
+            if (BUILT_IN[i].getScope().functions.get(function.getName() + "/" + function.getArity()) == function) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates the {@link Ast} node for the given node. The records of a node
+     * and its descendants are contiguous and in pre-order, so creating them in
+     * reverse order creates every child before its parent, without recursion.
+     */
+    Ast decode(int node) {
+        int end = node;
+        while (getChildCount(end) > 0) {
+            end = records.get(end + 2 + getChildCount(end));
+        }
+        end += length(end);
+        int[] starts = new int[16];
+        int count = 0;
+        for (int i = node; i < end; i += length(i)) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * count);
+            }
+            starts[count++] = i;
+        }
+        Decoder decoder = new Decoder(node, end);
+        for (int i = count - 1; i >= 0; i--) {
+            decoder.nodes[starts[i] - node] = annotate(starts[i], accept(starts[i], decoder));
+        }
+        return decoder.nodes[0];
+    }
+
+    /**
+     * Creates the {@link Ast} node of each record from its own fields and the
+     * nodes already created for its children.
+     */
+    private final class Decoder implements Visitor<Ast> {
+
+        private final int base;
+        private final Ast[] nodes;
+
+        private Decoder(int base, int end) {
+            this.base = base;
+            this.nodes = new Ast[end - base];
+        }
+
+        private Ast child(int node, int index) {
+            return nodes[records.get(node + 3 + index) - base];
+        }
+
+        private Ast.Expression expression(int node, int index) {
+            return (Ast.Expression) child(node, index);
+        }
+
+        private Optional<Ast.Expression> optional(int node) {
+            return Optional.ofNullable(getChildCount(node) > 0 ? expression(node, 0) : null);
+        }
+
+        private List<Ast.Statement> statements(int node, int from, int to) {
+            List<Ast.Statement> statements = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                statements.add((Ast.Statement) child(node, i));
+            }
+            return statements;
+        }
+
+        @Override
+        public Ast visitField(int node) {
+            return new Ast.Field(getName(node), getTypeName(node), isConstant(node), optional(node));
+        }
+
+        @Override
+        public Ast visitMethod(int node) {
+            List<String> parameters = new ArrayList<>();
+            List<String> parameterTypeNames = new ArrayList<>();
+            for (int i = 0; i < getParameterCount(node); i++) {
+                parameters.add(getParameter(node, i));
+                parameterTypeNames.add(getParameterTypeName(node, i));
+            }
+            return new Ast.Method(getName(node), parameters, parameterTypeNames,
+                    Optional.ofNullable(getTypeName(node)), statements(node, 0, getChildCount(node)));
+        }
+
+        @Override
+        public Ast visitExpression(int node) {
+            return new Ast.Statement.Expression(expression(node, 0));
+        }
+
+        @Override
+        public Ast visitDeclaration(int node) {
+            return new Ast.Statement.Declaration(getName(node), Optional.ofNullable(getTypeName(node)), optional(node));
+        }
+
+        @Override
+        public Ast visitAssignment(int node) {
+            return new Ast.Statement.Assignment(expression(node, 0), expression(node, 1));
+        }
+
+        @Override
+        public Ast visitIf(int node) {
+            int then = getThenCount(node);
+            return new Ast.Statement.If(expression(node, 0),
+                    statements(node, 1, 1 + then), statements(node, 1 + then, getChildCount(node)));
+        }
+
+        @Override
+        public Ast visitFor(int node) {
+            int i = 0;
+            Ast.Statement initialization = hasInitialization(node) ? (Ast.Statement) child(node, i++) : null;
+            Ast.Expression condition = expression(node, i++);
+            Ast.Statement increment = hasIncrement(node) ? (Ast.Statement) child(node, i++) : null;
+            return new Ast.Statement.For(initialization, condition, increment, statements(node, i, getChildCount(node)));
+        }
+
+        @Override
+        public Ast visitWhile(int node) {
+            return new Ast.Statement.While(expression(node, 0), statements(node, 1, getChildCount(node)));
+        }
+
+        @Override
+        public Ast visitReturn(int node) {
+            return new Ast.Statement.Return(expression(node, 0));
+        }
+
+        @Override
+        public Ast visitLiteral(int node) {
+            return new Ast.Expression.Literal(getLiteral(node));
+        }
+
+        @Override
+        public Ast visitGroup(int node) {
+            return new Ast.Expression.Group(expression(node, 0));
+        }
+
+        @Override
+        public Ast visitBinary(int node) {
+            return new Ast.Expression.Binary(getName(node), expression(node, 0), expression(node, 1));
+        }
+
+        @Override
+        public Ast visitAccess(int node) {
+            return new Ast.Expression.Access(optional(node), getName(node));
+        }
+
+        @Override
+        public Ast visitFunction(int node) {
+            int first = hasReceiver(node) ? 1 : 0;
+            List<Ast.Expression> arguments = new ArrayList<>();
+            for (int i = first; i < getChildCount(node); i++) {
+                arguments.add(expression(node, i));
+            }
+            return new Ast.Expression.Function(Optional.ofNullable(first > 0 ? expression(node, 0) : null),
+                    getName(node), arguments);
+        }
+
+    }
+
+    /**
+     * Sets what the analyzer resolved for the given node, if this arena holds
+     * it.
+     */
+    private Ast annotate(int node, Ast ast) {
+        if (!analyzed || !isAnnotated(getKind(node))) {
+            return ast;
+        }
+        int index = records.get(node + length(node) - 1);
+        switch (getKind(node)) {
+            case FIELD:
+                ((Ast.Field) ast).setVariable(variableAt(index));
+                break;
+            case METHOD:
+                ((Ast.Method) ast).setFunction(functionAt(index));
+                ((Ast.Method) ast).setFrameSize(frameSizes[Arrays.binarySearch(methods, 0, methodCount, node)]);
+                break;
+            case DECLARATION:
+                ((Ast.Statement.Declaration) ast).setVariable(variableAt(index));
+                break;
+            case ACCESS:
+                ((Ast.Expression.Access) ast).setVariable(variableAt(index));
+                break;
+            case FUNCTION:
+                ((Ast.Expression.Function) ast).setFunction(functionAt(index));
+                break;
+            case LITERAL:
+                ((Ast.Expression.Literal) ast).setType(typeAt(index));
+                break;
+            case GROUP:
+                ((Ast.Expression.Group) ast).setType(typeAt(index));
+                break;
+            case BINARY:
+                ((Ast.Expression.Binary) ast).setType(typeAt(index));
+                break;
+            default:
+                throw new AssertionError(getKind(node));
+        }
+        return ast;
+    }
+
+    private static boolean isAnnotated(Kind kind) {
+        switch (kind) {
+            case FIELD: case METHOD: case DECLARATION: case ACCESS: case FUNCTION: case LITERAL: case GROUP: case BINARY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Appends the records of the given node and its descendants, returning the
+     * position of its record. Children are written from a stack rather than
+     * recursively, so deeply nested expressions are fine, and each child's
+     * position is filled into its parent's record once it is written.
+     */
+    private int encode(Ast root) {
+        int start = size;
+        Deque<Ast> pending = new ArrayDeque<>();
+        Deque<Integer> slots = new ArrayDeque<>();
+        pending.push(root);
+        slots.push(-1);
+        while (!pending.isEmpty()) {
+            Ast ast = pending.pop();
+            int slot = slots.pop();
+            int node = size;
+            if (slot >= 0) {
+                code[slot] = node;
+            }
+            List<Ast> children = write(ast);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                pending.push(children.get(i));
+                slots.push(node + 3 + i);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Appends the record of the given node, with room for the positions of its
+     * children, and returns those children.
+     */
+    private List<Ast> write(Ast ast) {
+        List<Ast> children = new ArrayList<>();
+        Kind kind;
+        int value = 0;
+        int extra = 0;
+        List<String> parameters = null;
+        List<String> parameterTypeNames = null;
+        if (ast instanceof Ast.Field) {
+            Ast.Field field = (Ast.Field) ast;
+            kind = Kind.FIELD;
+            value = name(field.getName());
+            extra = name(field.getTypeName()) << 1 | (field.getConstant() ? 1 : 0);
+            field.getValue().ifPresent(children::add);
+        } else if (ast instanceof Ast.Method) {
+            Ast.Method method = (Ast.Method) ast;
+            kind = Kind.METHOD;
+            value = name(method.getName());
+            extra = method.getReturnTypeName().map(this::name).orElse(-1);
+            children.addAll(method.getStatements());
+            parameters = method.getParameters();
+            parameterTypeNames = method.getParameterTypeNames();
+        } else if (ast instanceof Ast.Statement.Expression) {
+            kind = Kind.EXPRESSION;
+            children.add(((Ast.Statement.Expression) ast).getExpression());
+        } else if (ast instanceof Ast.Statement.Declaration) {
+            Ast.Statement.Declaration declaration = (Ast.Statement.Declaration) ast;
+            kind = Kind.DECLARATION;
+            value = name(declaration.getName());
+            extra = declaration.getTypeName().map(this::name).orElse(-1);
+            declaration.getValue().ifPresent(children::add);
+        } else if (ast instanceof Ast.Statement.Assignment) {
+            kind = Kind.ASSIGNMENT;
+            children.add(((Ast.Statement.Assignment) ast).getReceiver());
+            children.add(((Ast.Statement.Assignment) ast).getValue());
+        } else if (ast instanceof Ast.Statement.If) {
+            Ast.Statement.If statement = (Ast.Statement.If) ast;
+            kind = Kind.IF;
+            extra = statement.getThenStatements().size();
+            children.add(statement.getCondition());
+            children.addAll(statement.getThenStatements());
+            children.addAll(statement.getElseStatements());
+        } else if (ast instanceof Ast.Statement.For) {
+            Ast.Statement.For statement = (Ast.Statement.For) ast;
+            kind = Kind.FOR;
+            if (statement.getInitialization() != null) {
+                extra |= INITIALIZATION;
+                children.add(statement.getInitialization());
+            }
+            children.add(statement.getCondition());
+            if (statement.getIncrement() != null) {
+                extra |= INCREMENT;
+                children.add(statement.getIncrement());
+            }
+            children.addAll(statement.getStatements());
+        } else if (ast instanceof Ast.Statement.While) {
+            kind = Kind.WHILE;
+            children.add(((Ast.Statement.While) ast).getCondition());
+            children.addAll(((Ast.Statement.While) ast).getStatements());
+        } else if (ast instanceof Ast.Statement.Return) {
+            kind = Kind.RETURN;
+            children.add(((Ast.Statement.Return) ast).getValue());
+        } else if (ast instanceof Ast.Expression.Literal) {
+            kind = Kind.LITERAL;
+            value = literal(((Ast.Expression.Literal) ast).getLiteral());
+        } else if (ast instanceof Ast.Expression.Group) {
+            kind = Kind.GROUP;
+            children.add(((Ast.Expression.Group) ast).getExpression());
+        } else if (ast instanceof Ast.Expression.Binary) {
+            Ast.Expression.Binary binary = (Ast.Expression.Binary) ast;
+            kind = Kind.BINARY;
+            value = name(binary.getOperator());
+            children.add(binary.getLeft());
+            children.add(binary.getRight());
+        } else if (ast instanceof Ast.Expression.Access) {
+            Ast.Expression.Access access = (Ast.Expression.Access) ast;
+            kind = Kind.ACCESS;
+            value = name(access.getName());
+            extra = access.getReceiver().isPresent() ? 1 : 0;
+            access.getReceiver().ifPresent(children::add);
+        } else if (ast instanceof Ast.Expression.Function) {
+            Ast.Expression.Function function = (Ast.Expression.Function) ast;
+            kind = Kind.FUNCTION;
+            value = name(function.getName());
+            extra = function.getReceiver().isPresent() ? 1 : 0;
+            function.getReceiver().ifPresent(children::add);
+            children.addAll(function.getArguments());
+        } else {
+            throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
+        }
+        boolean annotated = analyzed && isAnnotated(kind);
+        int length = 3 + children.size() + (parameters == null ? 0 : 1 + 2 * parameters.size()) + (annotated ? 1 : 0);
+        if (size + length > code.length) {
+            code = Arrays.copyOf(code, Math.max(size + length, size + (size >> 1)));
+            records = IntBuffer.wrap(code);
+        }
+        code[size] = kind.ordinal() | children.size() << 4;
+        code[size + 1] = value;
+        code[size + 2] = extra;
+        size += 3 + children.size();
+        if (parameters != null) {
+            code[size++] = parameters.size();
+            for (int i = 0; i < parameters.size(); i++) {
+                code[size++] = name(parameters.get(i));
+                code[size++] = name(parameterTypeNames.get(i));
+            }
+        }
+        if (annotated) {
+            code[size++] = annotation(ast);
+        }
+        return children;
+    }
+
+    /**
+     * Returns the table index of what the analyzer resolved for the given
+     * node, adding it to its table if it is not there yet.
+     */
+    private int annotation(Ast ast) {
+        if (ast instanceof Ast.Field) {
+            return variable(((Ast.Field) ast).getVariable());
+        } else if (ast instanceof Ast.Method) {
+            return function(((Ast.Method) ast).getFunction());
+        } else if (ast instanceof Ast.Statement.Declaration) {
+            return variable(((Ast.Statement.Declaration) ast).getVariable());
+        } else if (ast instanceof Ast.Expression.Access) {
+            return variable(((Ast.Expression.Access) ast).getVariable());
+        } else if (ast instanceof Ast.Expression.Function) {
+            return function(((Ast.Expression.Function) ast).getFunction());
+        } else {
+            return type(((Ast.Expression) ast).getType());
+        }
+    }
+
+    private int name(String name) {
+        return nameIndexes.computeIfAbsent(name, n -> {
+            names.add(n);
+            return names.size() - 1;
+        });
+    }
+
+    private int type(Environment.Type type) {
+        return typeIndexes.computeIfAbsent(type, t -> {
+            types.add(t);
+            return types.size() - 1;
+        });
+    }
+
+    private int variable(Environment.Variable variable) {
+        return variableIndexes.computeIfAbsent(variable, v -> {
+            variables.add(v);
+            return variables.size() - 1;
+        });
+    }
+
+    private int function(Environment.Function function) {
+        return functionIndexes.computeIfAbsent(function, f -> {
+            functions.add(f);
+            return functions.size() - 1;
+        });
+    }
+
+    private int literal(Object literal) {
+        Integer index = literalIndexes.get(literal);
+        if (index == null) {
+            index = literals.size();
+            literals.add(literal);
+            literalIndexes.put(literal, index);
+        }
+        return index;
+    }
+
+    private int length(int node) {
+        int length = 3 + getChildCount(node);
+        if (getKind(node) == Kind.METHOD) {
+            length += 1 + 2 * records.get(node + length);
+        }
+        if (analyzed && isAnnotated(getKind(node))) {
+            length++;
+        }
+        return length;
+    }
+
+    private int parameter(int method, int index) {
+        if (index < 0 || index >= getParameterCount(method)) {
+            throw new IndexOutOfBoundsException("Parameter index " + index + " out of bounds for method " + method + ".");
+        }
+        return method + 4 + getChildCount(method) + 2 * index;
+    }
+
+    private void check(int node, Kind kind) {
+        if (getKind(node) != kind) {
+            throw new IllegalArgumentException("Node " + node + " is " + getKind(node) + ", not " + kind + ".");
+        }
+    }
+
+}
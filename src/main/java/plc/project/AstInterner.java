@@ -0,0 +1,324 @@
+package plc.project;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Shares equal expressions (hash-consing), so each distinct expression such as
+ * {@code a + 1} or {@code x.length} is kept once however many times it
+ * appears. Expressions are interned bottom-up, so the children of an interned
+ * expression are already interned, and two expressions can be compared by
+ * their own fields and the identity of their children instead of a deep
+ * {@code equals}. Lookups start from {@link Ast.Expression#hashCode()}, which
+ * is computed when each expression is created.
+ *
+ * Sources are interned after they are analyzed, and the type, variable, or
+ * function the {@link Analyzer} set on an expression is part of what it is
+ * compared by (by identity). The same name is a different expression where it
+ * is a different variable, such as a field in one method and a local variable
+ * in another, so every use of a shared expression has the same annotations.
+ * The only thing written to an expression afterwards is the call cache of the
+ * {@link Interpreter}, which checks it is valid at each use. Expressions that
+ * have not been analyzed cannot be interned: their annotations throw an
+ * {@link IllegalStateException}, as for any other use.
+ *
+ * An expression whose children were replaced is created again with the same
+ * annotations, and so are the statements, fields, and methods containing it.
+ * Interned sources must not be analyzed again.
+ *
+ * An interner keeps every expression it has interned, so expressions are also
+ * shared between the sources interned by the same interner (when they refer to
+ * the same variables and functions). It is not thread safe.
+ */
+public final class AstInterner {
+
+    private final Map<Key, Ast.Expression> expressions = new HashMap<>();
+
+    /**
+     * Returns the number of distinct expressions interned so far.
+     */
+    public int size() {
+        return expressions.size();
+    }
+
+    /**
+     * Returns the given analyzed source with its expressions interned, which
+     * is the same source if every expression in it was already the interned
+     * one.
+     */
+    public Ast.Source intern(Ast.Source source) {
+        boolean changed = false;
+        List<Ast.Field> fields = new ArrayList<>(source.getFields().size());
+        for (Ast.Field field : source.getFields()) {
+            Optional<Ast.Expression> value = intern(field.getValue());
+            if (value != field.getValue()) {
+                Ast.Field copy = new Ast.Field(field.getName(), field.getTypeName(), field.getConstant(), value);
+                copy.setVariable(field.getVariable());
+                field = copy;
+                changed = true;
+            }
+            fields.add(field);
+        }
+        List<Ast.Method> methods = new ArrayList<>(source.getMethods().size());
+        for (Ast.Method method : source.getMethods()) {
+            List<Ast.Statement> statements = intern(method.getStatements());
+            if (statements != method.getStatements()) {
+                Ast.Method copy = new Ast.Method(method.getName(), method.getParameters(), method.getParameterTypeNames(), method.getReturnTypeName(), statements);
+                copy.setFunction(method.getFunction());
+                copy.setFrameSize(method.getFrameSize());
+                method = copy;
+                changed = true;
+            }
+            methods.add(method);
+        }
+        return changed ? new Ast.Source(fields, methods) : source;
+    }
+
+    /**
+     * Returns the interned expression equal to the given analyzed one,
+     * interning it (and its descendants) if there is none. Expressions are
+     * visited with an explicit stack, as in the {@link Analyzer}, so deep
+     * expressions do not overflow the Java stack: each is popped once to push
+     * its children, and again to intern it once its children have been
+     * interned.
+     */
+    public Ast.Expression intern(Ast.Expression root) {
+        Deque<Ast.Expression> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        Deque<Ast.Expression> interned = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            Ast.Expression node = nodes.pop();
+            List<Ast.Expression> children = children(node);
+            if (expanded.pop()) {
+                Ast.Expression[] replaced = new Ast.Expression[children.size()];
+                boolean changed = false;
+                for (int i = replaced.length - 1; i >= 0; i--) {
+                    replaced[i] = interned.pop();
+                    changed |= replaced[i] != children.get(i);
+                }
+                Key key = new Key(node, replaced);
+                Ast.Expression existing = expressions.get(key);
+                if (existing == null) {
+                    existing = changed ? copy(node, replaced) : node;
+                    expressions.put(key, existing);
+                }
+                interned.push(existing);
+            } else {
+                nodes.push(node);
+                expanded.push(true);
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    nodes.push(children.get(i));
+                    expanded.push(false);
+                }
+            }
+        }
+        return interned.pop();
+    }
+
+    private Optional<Ast.Expression> intern(Optional<Ast.Expression> expression) {
+        if (expression.isPresent()) {
+            Ast.Expression interned = intern(expression.get());
+            if (interned != expression.get()) {
+                return Optional.of(interned);
+            }
+        }
+        return expression;
+    }
+
+    private List<Ast.Statement> intern(List<Ast.Statement> statements) {
+        boolean changed = false;
+        List<Ast.Statement> interned = new ArrayList<>(statements.size());
+        for (Ast.Statement statement : statements) {
+            Ast.Statement result = intern(statement);
+            changed |= result != statement;
+            interned.add(result);
+        }
+        return changed ? interned : statements;
+    }
+
+    private Ast.Statement intern(Ast.Statement statement) {
+        if (statement == null) {
+            return null;
+        } else if (statement instanceof Ast.Statement.Expression) {
+            Ast.Statement.Expression ast = (Ast.Statement.Expression) statement;
+            Ast.Expression expression = intern(ast.getExpression());
+            return expression == ast.getExpression() ? ast : new Ast.Statement.Expression(expression);
+        } else if (statement instanceof Ast.Statement.Declaration) {
+            Ast.Statement.Declaration ast = (Ast.Statement.Declaration) statement;
+            Optional<Ast.Expression> value = intern(ast.getValue());
+            if (value == ast.getValue()) {
+                return ast;
+            }
+            Ast.Statement.Declaration copy = new Ast.Statement.Declaration(ast.getName(), ast.getTypeName(), value);
+            copy.setVariable(ast.getVariable());
+            return copy;
+        } else if (statement instanceof Ast.Statement.Assignment) {
+            Ast.Statement.Assignment ast = (Ast.Statement.Assignment) statement;
+            Ast.Expression receiver = intern(ast.getReceiver());
+            Ast.Expression value = intern(ast.getValue());
+            return receiver == ast.getReceiver() && value == ast.getValue() ? ast : new Ast.Statement.Assignment(receiver, value);
+        } else if (statement instanceof Ast.Statement.If) {
+            Ast.Statement.If ast = (Ast.Statement.If) statement;
+            Ast.Expression condition = intern(ast.getCondition());
+            List<Ast.Statement> thenStatements = intern(ast.getThenStatements());
+            List<Ast.Statement> elseStatements = intern(ast.getElseStatements());
+            return condition == ast.getCondition() && thenStatements == ast.getThenStatements() && elseStatements == ast.getElseStatements()
+                    ? ast : new Ast.Statement.If(condition, thenStatements, elseStatements);
+        } else if (statement instanceof Ast.Statement.For) {
+            Ast.Statement.For ast = (Ast.Statement.For) statement;
+            Ast.Statement initialization = intern(ast.getInitialization());
+            Ast.Expression condition = intern(ast.getCondition());
+            Ast.Statement increment = intern(ast.getIncrement());
+            List<Ast.Statement> statements = intern(ast.getStatements());
+            return initialization == ast.getInitialization() && condition == ast.getCondition() && increment == ast.getIncrement() && statements == ast.getStatements()
+                    ? ast : new Ast.Statement.For(initialization, condition, increment, statements);
+        } else if (statement instanceof Ast.Statement.While) {
+            Ast.Statement.While ast = (Ast.Statement.While) statement;
+            Ast.Expression condition = intern(ast.getCondition());
+            List<Ast.Statement> statements = intern(ast.getStatements());
+            return condition == ast.getCondition() && statements == ast.getStatements() ? ast : new Ast.Statement.While(condition, statements);
+        } else if (statement instanceof Ast.Statement.Return) {
+            Ast.Statement.Return ast = (Ast.Statement.Return) statement;
+            Ast.Expression value = intern(ast.getValue());
+            return value == ast.getValue() ? ast : new Ast.Statement.Return(value);
+        } else {
+            throw new AssertionError("Unknown statement " + statement.getClass().getName());
+        }
+    }
+
+    /**
+     * Returns the children of the given expression in source order.
+     */
+    private static List<Ast.Expression> children(Ast.Expression ast) {
+        List<Ast.Expression> children = new ArrayList<>();
+        if (ast instanceof Ast.Expression.Group) {
+            children.add(((Ast.Expression.Group) ast).getExpression());
+        } else if (ast instanceof Ast.Expression.Binary) {
+            children.add(((Ast.Expression.Binary) ast).getLeft());
+            children.add(((Ast.Expression.Binary) ast).getRight());
+        } else if (ast instanceof Ast.Expression.Access) {
+            ((Ast.Expression.Access) ast).getReceiver().ifPresent(children::add);
+        } else if (ast instanceof Ast.Expression.Function) {
+            ((Ast.Expression.Function) ast).getReceiver().ifPresent(children::add);
+            children.addAll(((Ast.Expression.Function) ast).getArguments());
+        }
+        return children;
+    }
+
+    /**
+     * Returns a copy of the given expression with the given children, in the
+     * order of {@link #children(Ast.Expression)}, and the same annotation.
+     */
+    private static Ast.Expression copy(Ast.Expression ast, Ast.Expression[] children) {
+        if (ast instanceof Ast.Expression.Group) {
+            Ast.Expression.Group copy = new Ast.Expression.Group(children[0]);
+            copy.setType(ast.getType());
+            return copy;
+        } else if (ast instanceof Ast.Expression.Binary) {
+            Ast.Expression.Binary copy = new Ast.Expression.Binary(((Ast.Expression.Binary) ast).getOperator(), children[0], children[1]);
+            copy.setType(ast.getType());
+            return copy;
+        } else if (ast instanceof Ast.Expression.Access) {
+            Ast.Expression.Access copy = new Ast.Expression.Access(Optional.of(children[0]), ((Ast.Expression.Access) ast).getName());
+            copy.setVariable(((Ast.Expression.Access) ast).getVariable());
+            return copy;
+        } else {
+            Ast.Expression.Function function = (Ast.Expression.Function) ast;
+            int receiver = function.getReceiver().isPresent() ? 1 : 0;
+            List<Ast.Expression> arguments = new ArrayList<>(children.length - receiver);
+            for (int i = receiver; i < children.length; i++) {
+                arguments.add(children[i]);
+            }
+            Ast.Expression.Function copy = new Ast.Expression.Function(receiver == 1 ? Optional.of(children[0]) : Optional.empty(), function.getName(), arguments);
+            copy.setFunction(function.getFunction());
+            return copy;
+        }
+    }
+
+    /**
+     * Returns what the {@link Analyzer} resolved the given expression to: the
+     * variable of an access, the function of a call, or else the type.
+     */
+    private static Object annotation(Ast.Expression ast) {
+        if (ast instanceof Ast.Expression.Access) {
+            return ((Ast.Expression.Access) ast).getVariable();
+        } else if (ast instanceof Ast.Expression.Function) {
+            return ((Ast.Expression.Function) ast).getFunction();
+        } else {
+            return ast.getType();
+        }
+    }
+
+    /**
+     * An expression in the table of interned expressions, given by its own
+     * fields, its annotation, and its interned children. Two keys are equal if
+     * these are the same, comparing the annotation and children by identity,
+     * which is equivalent to {@code equals} on analyzed expressions whose
+     * children are interned (and refer to the same variables and functions)
+     * without its recursion.
+     */
+    private static final class Key {
+
+        private final Ast.Expression expression;
+        private final Object annotation;
+        private final Ast.Expression[] children;
+        private final int hash;
+
+        private Key(Ast.Expression expression, Ast.Expression[] children) {
+            this.expression = expression;
+            this.annotation = annotation(expression);
+            this.children = children;
+            // the structural hash is the same for the same name in every
+            // method, so the annotation and children are hashed by identity
+            int hash = 31 * expression.hashCode() + System.identityHashCode(annotation);
+            for (Ast.Expression child : children) {
+                hash = 31 * hash + System.identityHashCode(child);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            if (key.expression.getClass() != expression.getClass() || key.annotation != annotation || key.children.length != children.length) {
+                return false;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (key.children[i] != children[i]) {
+                    return false;
+                }
+            }
+            Ast.Expression other = key.expression;
+            if (expression instanceof Ast.Expression.Literal) {
+                return Objects.equals(((Ast.Expression.Literal) expression).getLiteral(), ((Ast.Expression.Literal) other).getLiteral());
+            } else if (expression instanceof Ast.Expression.Binary) {
+                return ((Ast.Expression.Binary) expression).getOperator().equals(((Ast.Expression.Binary) other).getOperator());
+            } else if (expression instanceof Ast.Expression.Access) {
+                return ((Ast.Expression.Access) expression).getName().equals(((Ast.Expression.Access) other).getName())
+                        && ((Ast.Expression.Access) expression).getReceiver().isPresent() == ((Ast.Expression.Access) other).getReceiver().isPresent();
+            } else if (expression instanceof Ast.Expression.Function) {
+                return ((Ast.Expression.Function) expression).getName().equals(((Ast.Expression.Function) other).getName())
+                        && ((Ast.Expression.Function) expression).getReceiver().isPresent() == ((Ast.Expression.Function) other).getReceiver().isPresent();
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,295 @@
+package plc.project;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the output of each stage of compilation, kept in a directory so
+ * it is shared by every process using the same directory. Entries are keyed
+ * by a SHA-256 hash of {@link #VERSION} and the source, so a change to either
+ * is a miss rather than a stale hit.
+ *
+ * Each stage is stored in its own file, named by the key and the stage: the
+ * tokens (as the type, start, and length of each, since the literals are
+ * parts of the source), the analyzed AST (as written by {@link
+ * AstArena#write(Path)}), and the output of the {@link Generator}. A hit
+ * reads only the file of the requested stage, so none of the earlier stages
+ * run. A miss runs the stage (using the cache for the stages before it) and
+ * stores the result.
+ *
+ * Files are written to a temporary file and then moved into place, so other
+ * processes only ever see complete files, and a file that is missing
+ * (evicted by another process) or unreadable is treated as a miss. Each hit
+ * updates the file's modification time, and after each store the least
+ * recently used files are deleted until the directory is within its size
+ * limit.
+ */
+public final class CompilationCache {
+
+    /**
+     * The version of the compiler, which is part of every key. This must be
+     * changed whenever a change to the compiler changes the output of any
+     * stage, or the format the output is stored in.
+     */
+    public static final String VERSION = "3";
+
+    private static final String TOKENS = ".tokens";
+    private static final String AST = ".ast";
+    private static final String JAVA = ".java";
+    private static final String TEMPORARY = ".tmp";
+
+    /**
+     * The age in milliseconds after which a temporary file is assumed to have
+     * been abandoned, and may be evicted.
+     */
+    private static final long STALE = 60 * 60 * 1000;
+
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private final Path directory;
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache in the given directory (creating it if necessary), which
+     * evicts entries once the files in it total more than {@code maxSize}
+     * bytes.
+     */
+    public CompilationCache(Path directory, long maxSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the tokens of the given source, as in {@link Lexer#lex()}.
+     */
+    public List<Token> lex(String source) {
+        Path path = path(source, TOKENS);
+        try {
+            IntBuffer in = ByteBuffer.wrap(Files.readAllBytes(path)).asIntBuffer();
+            List<Token> tokens = new ArrayList<>();
+            for (int i = in.get(); i > 0; i--) {
+                Token.Type type = TYPES[in.get()];
+                int start = in.get();
+                tokens.add(new Token(type, source.substring(start, start + in.get()), start));
+            }
+            hit(path);
+            return tokens;
+        } catch (IOException | RuntimeException e) {
+            // missing, evicted, or damaged, so lex again below
+        }
+        misses.incrementAndGet();
+        List<Token> tokens = new Lexer(source).lex();
+        store(path, temporary -> {
+            ByteBuffer out = ByteBuffer.allocate(4 + 12 * tokens.size());
+            out.putInt(tokens.size());
+            for (Token token : tokens) {
+                out.putInt(token.getType().ordinal());
+                out.putInt(token.getIndex());
+                out.putInt(token.getLength());
+            }
+            Files.write(temporary, out.array());
+        });
+        return tokens;
+    }
+
+    /**
+     * Returns the AST of the given source after it has been analyzed by an
+     * {@link Analyzer} with a new, empty scope. Method bodies are read when
+     * they are first used, as in {@link AstArena#toSource()}.
+     */
+    public Ast.Source analyze(String source) {
+        Path path = path(source, AST);
+        try {
+            Ast.Source ast = AstArena.read(path).toSource();
+            hit(path);
+            return ast;
+        } catch (IOException | RuntimeException e) {
+            // missing, evicted, or damaged, so analyze again below
+        }
+        misses.incrementAndGet();
+        Ast.Source ast = new Parser(lex(source)).parseSource();
+        new Analyzer(new Scope(null)).visit(ast);
+        AstArena arena = AstArena.ofAnalyzed(ast);
+        store(path, arena::write);
+        return ast;
+    }
+
+    /**
+     * Returns the Java source the {@link Generator} produces for the given
+     * source.
+     */
+    public String generate(String source) {
+        Path path = path(source, JAVA);
+        try {
+            String java = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            hit(path);
+            return java;
+        } catch (IOException e) {
+            // missing or evicted, so generate again below
+        }
+        misses.incrementAndGet();
+        StringWriter writer = new StringWriter();
+        new Generator(new PrintWriter(writer)).visit(analyze(source));
+        String java = writer.toString();
+        store(path, temporary -> Files.write(temporary, java.getBytes(StandardCharsets.UTF_8)));
+        return java;
+    }
+
+    /**
+     * Returns the number of lookups (of any stage) answered from the cache by
+     * this instance.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups (of any stage) by this instance that had
+     * to run the stage, including those made for a later stage that missed.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of files this instance deleted to stay within the
+     * size limit.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private Path path(String source, String stage) {
+        return directory.resolve(key(source) + stage);
+    }
+
+    /**
+     * Returns the key of the given source, a SHA-256 hash of the version and
+     * the source in hexadecimal.
+     */
+    static String key(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private void hit(Path path) {
+        hits.incrementAndGet();
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted by another process since it was read, which is fine
+        }
+    }
+
+    private interface Writer {
+        void write(Path path) throws IOException;
+    }
+
+    /**
+     * Writes a file through a temporary file in the cache directory, which is
+     * then moved into place so no process reads a partly written file, and
+     * evicts files if the cache has grown too large. Failing to store is not
+     * an error, since the result is still returned to the caller.
+     */
+    private void store(Path path, Writer writer) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, path.getFileName().toString(), TEMPORARY);
+            writer.write(temporary);
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            evict();
+        } catch (IOException e) {
+            // the cache is only an optimization
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // left for a later eviction to remove
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the files in the directory
+     * total at most the size limit. Another process may be evicting at the
+     * same time, so files that are already gone are skipped.
+     */
+    private void evict() throws IOException {
+        Map<Path, BasicFileAttributes> files = new HashMap<>();
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        files.put(path, attributes);
+                        size += attributes.size();
+                    }
+                } catch (NoSuchFileException e) {
+                    // evicted by another process
+                }
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>(files.keySet());
+        paths.sort(Comparator.comparing(path -> files.get(path).lastModifiedTime()));
+        for (int i = 0; i < paths.size() && size > maxSize; i++) {
+            Path path = paths.get(i);
+            // a recent temporary file may still be being written by another
+            // process, while an old one was left by a process that failed
+            if (path.getFileName().toString().endsWith(TEMPORARY)
+                    && files.get(path).lastModifiedTime().toMillis() > System.currentTimeMillis() - STALE) {
+                continue;
+            }
+            if (Files.deleteIfExists(path)) {
+                evictions.incrementAndGet();
+            }
+            size -= files.get(path).size();
+        }
+    }
+
+}
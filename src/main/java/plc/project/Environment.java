@@ -1,5 +1,6 @@
 package plc.project;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -8,8 +9,56 @@ import java.util.Map;
 
 public final class Environment {
 
+    /**
+     * The scope and type of every value made by {@link #create(Object)}, which
+     * have no fields or methods, so they are shared rather than allocated for
+     * each value. Nothing may be defined in this scope.
+     */
+    private static final Scope VALUE_SCOPE = new Scope(null);
+    private static final Type VALUE_TYPE = new Type("Unknown", "Unknown", VALUE_SCOPE);
+
+    private static final PlcObject TRUE = new PlcObject(true);
+    private static final PlcObject FALSE = new PlcObject(false);
+    private static final PlcObject[] INTEGERS = new PlcObject[128 + 1024];
+    private static final PlcObject[] CHARACTERS = new PlcObject[128];
+
+    static {
+        for (int i = 0; i < INTEGERS.length; i++) {
+            INTEGERS[i] = new PlcObject(i - 128, BigInteger.valueOf(i - 128));
+        }
+        for (char c = 0; c < CHARACTERS.length; c++) {
+            CHARACTERS[c] = new PlcObject(c);
+        }
+    }
+
+    /**
+     * Creates a value with no fields or methods. Values are immutable, so
+     * booleans, integers from -128 to 1023, and ASCII characters are shared
+     * instances, and integers that fit in a long are kept as one (see {@link
+     * #createInteger(long)}).
+     */
     public static PlcObject create(Object value) {
-        return new PlcObject(new Scope(null), value);
+        if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE : FALSE;
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            return createInteger(((BigInteger) value).longValue());
+        } else if (value instanceof Character && (Character) value < CHARACTERS.length) {
+            return CHARACTERS[(Character) value];
+        }
+        return new PlcObject(value);
+    }
+
+    /**
+     * Creates an integer, equal to {@code create(BigInteger.valueOf(value))},
+     * which is kept as a long so the {@link Interpreter} can do arithmetic on
+     * it without big numbers. The {@link BigInteger} is only created if
+     * {@link PlcObject#getValue()} is called.
+     */
+    public static PlcObject createInteger(long value) {
+        if (value >= -128 && value < INTEGERS.length - 128) {
+            return INTEGERS[(int) value + 128];
+        }
+        return new PlcObject(value, null);
     }
 
     public static final PlcObject NIL = new PlcObject(Type.NIL, new Scope(null), new Object() {
@@ -112,7 +161,9 @@ public final class Environment {
 
         private final Type type;
         private final Scope scope;
-        private final Object value;
+        private Object value;
+        private final long integer;
+        private final boolean compact;
 
         public PlcObject(Scope scope, Object value) {
             this(new Type("Unknown", "Unknown", scope), scope, value);
@@ -122,6 +173,20 @@ public final class Environment {
             this.type = type;
             this.scope = scope;
             this.value = value;
+            this.integer = 0;
+            this.compact = false;
+        }
+
+        private PlcObject(Object value) {
+            this(VALUE_TYPE, VALUE_SCOPE, value);
+        }
+
+        private PlcObject(long integer, BigInteger value) {
+            this.type = VALUE_TYPE;
+            this.scope = VALUE_SCOPE;
+            this.value = value;
+            this.integer = integer;
+            this.compact = true;
         }
 
         public Variable getField(String name) {
@@ -133,9 +198,25 @@ public final class Environment {
         }
 
         public Object getValue() {
+            if (value == null && compact) {
+                // racing threads create equal values, so either may be kept
+                value = BigInteger.valueOf(integer);
+            }
             return value;
         }
 
+        /**
+         * Returns whether this is an integer created by {@link
+         * #createInteger(long)}, which {@link #getLong()} returns.
+         */
+        boolean isLong() {
+            return compact;
+        }
+
+        long getLong() {
+            return integer;
+        }
+
         public void setField(String name, PlcObject value) {
             scope.lookupVariable(name).setValue(value);
         }
@@ -152,7 +233,7 @@ public final class Environment {
             return "Object{" +
                     "type=" + type +
                     ", scope=" + scope +
-                    ", value=" + value +
+                    ", value=" + getValue() +
                     '}';
         }
 
@@ -165,6 +246,8 @@ public final class Environment {
         private final boolean constant;
         private final Type type;
         private PlcObject value;
+        private int depth = -1;
+        private int slot = -1;
 
         public Variable(String name, boolean constant, PlcObject value) {
             this(name, name, Type.ANY, constant, value);
@@ -202,6 +285,26 @@ public final class Environment {
             this.value = value;
         }
 
+        /**
+         * Returns the depth of the address the {@link Analyzer} gave this
+         * variable: 0 for a field, whose slot is its position among the
+         * fields, and 1 for a parameter or local variable of a method, whose
+         * slot is in the frame of each call. Variables it did not declare,
+         * such as those of an enclosing scope, have no address and return -1.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public void setAddress(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Variable &&
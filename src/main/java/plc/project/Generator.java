@@ -1,6 +1,8 @@
 package plc.project;
 
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.math.BigInteger;
 import java.math.BigDecimal;
@@ -286,22 +288,43 @@ public final class Generator implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Expression.Group ast) {
-        print("(");
-        visit(ast.getExpression());
-        print(")");
+        printOperators(ast);
         return null;
     }
 
     @Override
     public Void visit(Ast.Expression.Binary ast) {
-        visit(ast.getLeft());
-        print(" ");
-        print(ast.getOperator());
-        print(" ");
-        visit(ast.getRight());
+        printOperators(ast);
         return null;
     }
 
+    /**
+     * Prints a tree of binary and group expressions using an explicit stack
+     * of what is left to print instead of recursion, so long operator chains
+     * and deeply nested groups do not overflow the Java stack. A binary or
+     * group node is replaced on the stack by its parts in reverse order; other
+     * expressions are printed with {@link #visit(Ast)} and strings as is.
+     */
+    private void printOperators(Ast.Expression root) {
+        Deque<Object> parts = new ArrayDeque<>();
+        parts.push(root);
+        while (!parts.isEmpty()) {
+            Object part = parts.pop();
+            if (part instanceof Ast.Expression.Binary) {
+                Ast.Expression.Binary binary = (Ast.Expression.Binary) part;
+                parts.push(binary.getRight());
+                parts.push(" " + binary.getOperator() + " ");
+                parts.push(binary.getLeft());
+            } else if (part instanceof Ast.Expression.Group) {
+                parts.push(")");
+                parts.push(((Ast.Expression.Group) part).getExpression());
+                parts.push("(");
+            } else {
+                print(part);
+            }
+        }
+    }
+
     @Override
     public Void visit(Ast.Expression.Access ast) {
         if (ast.getReceiver().isPresent()) {
@@ -2,6 +2,9 @@ package plc.project;
 
 import java.math.BigInteger;
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Objects;
@@ -11,6 +14,47 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
 
     private Scope scope = new Scope(null);
 
+    /**
+     * The variables of the fields defined so far, in order, which are usually
+     * at the slots the {@link Analyzer} gave them, and the frame of
+     * the method being called if it was analyzed (see {@link
+     * Ast.Method#getFrameSize()}), or else {@code null}. While running an
+     * analyzed method, its variables and the fields are read and written by
+     * the addresses the {@link Analyzer} gave them instead of being looked up
+     * by name, and blocks do not create scopes.
+     */
+    private final List<Environment.Variable> fields = new ArrayList<>();
+    private Environment.PlcObject[] frame = null;
+
+    /**
+     * Whether the statements being executed are the body of a loop after its
+     * first iteration. Every iteration of a loop runs in the same scope, so
+     * without a frame a declaration directly in the body fails on the second
+     * iteration because the variable is already defined. With a frame the
+     * declaration throws the same error, so analyzing a program does not
+     * change what it does.
+     */
+    private boolean repeating = false;
+
+    /**
+     * The stacks of {@link #evaluateOperators(Ast.Expression)}, which are kept
+     * between calls so evaluating an expression allocates nothing for them. A
+     * call made while evaluating an expression evaluates its own expressions
+     * above the entries of the calls in progress.
+     */
+    private final Deque<Ast.Expression> nodes = new ArrayDeque<>();
+    private final Deque<Integer> stages = new ArrayDeque<>();
+    private final Operands values = new Operands();
+
+    /**
+     * Returned by a statement that completed by returning, rather than
+     * throwing an exception, so the blocks containing it stop executing and
+     * pass it on until the method being called takes the value from {@link
+     * #returned}. Every other statement returns {@link Environment#NIL}.
+     */
+    private static final Environment.PlcObject RETURN = new Environment.PlcObject(new Scope(null), null);
+    private Environment.PlcObject returned = null;
+
     public Interpreter(Scope parent) {
         scope = new Scope(parent);
         scope.defineFunction("print", 1, args -> {
@@ -43,7 +87,7 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         } else {
             value = Environment.NIL;
         }
-        scope.defineVariable(ast.getName(), ast.getConstant(), value);
+        fields.add(scope.defineVariable(ast.getName(), ast.getName(), Environment.Type.ANY, ast.getConstant(), value));
         return Environment.NIL;
     }
 
@@ -52,19 +96,34 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         Scope definingScope = scope;
         scope.defineFunction(ast.getName(), ast.getParameters().size(), args -> {
             Scope old = scope;
-            scope = new Scope(definingScope);
+            Environment.PlcObject[] oldFrame = frame;
+            boolean oldRepeating = repeating;
+            repeating = false;
             try {
-                for (int i = 0; i < ast.getParameters().size(); i++) {
-                    scope.defineVariable(ast.getParameters().get(i), false, args.get(i));
+                if (ast.getFrameSize() >= 0) {
+                    // the parameters are the first slots
+                    scope = definingScope;
+                    frame = new Environment.PlcObject[ast.getFrameSize()];
+                    for (int i = 0; i < ast.getParameters().size(); i++) {
+                        frame[i] = args.get(i);
+                    }
+                } else {
+                    scope = new Scope(definingScope);
+                    frame = null;
+                    for (int i = 0; i < ast.getParameters().size(); i++) {
+                        scope.defineVariable(ast.getParameters().get(i), false, args.get(i));
+                    }
                 }
-                for (Ast.Statement s : ast.getStatements()) {
-                    visit(s);
+                if (execute(ast.getStatements()) == RETURN) {
+                    Environment.PlcObject value = returned;
+                    returned = null;
+                    return value;
                 }
                 return Environment.NIL;
-            } catch (Return r) {
-                return r.value;
             } finally {
                 scope = old;
+                frame = oldFrame;
+                repeating = oldRepeating;
             }
         });
         return Environment.NIL;
@@ -84,7 +143,14 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         } else {
             value = Environment.NIL;
         }
-        scope.defineVariable(ast.getName(), false, value);
+        if (frame != null) {
+            if (repeating) {
+                throw new RuntimeException("The variable " + ast.getName() + " is already defined in this scope.");
+            }
+            frame[ast.getVariable().getSlot()] = value;
+        } else {
+            scope.defineVariable(ast.getName(), false, value);
+        }
         return Environment.NIL;
     }
 
@@ -103,8 +169,13 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
                 throw new RuntimeException("Cannot assign to constant field.");
             }
             var.setValue(v);
+        } else if (frame != null && acc.getVariable().getDepth() == 1) {
+            // parameters and local variables are never constant
+            frame[acc.getVariable().getSlot()] = v;
         } else {
-            Environment.Variable var = scope.lookupVariable(acc.getName());
+            Environment.Variable var = frame != null && acc.getVariable().getDepth() == 0
+                    ? lookupField(acc)
+                    : scope.lookupVariable(acc.getName());
             if (var.getConstant()) {
                 throw new RuntimeException("Cannot assign to constant variable.");
             }
@@ -118,41 +189,39 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     public Environment.PlcObject visit(Ast.Statement.If ast) {
         Boolean cond = requireType(Boolean.class, visit(ast.getCondition()));
         Scope old = scope;
-        scope = new Scope(old);
+        boolean oldRepeating = repeating;
+        scope = frame == null ? new Scope(old) : old;
+        repeating = false;
         try {
-            if (cond) {
-                for (Ast.Statement s : ast.getThenStatements()) {
-                    visit(s);
-                }
-            } else {
-                for (Ast.Statement s : ast.getElseStatements()) {
-                    visit(s);
-                }
-            }
+            return execute(cond ? ast.getThenStatements() : ast.getElseStatements());
         } finally {
             scope = old;
+            repeating = oldRepeating;
         }
-        return Environment.NIL;
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Statement.For ast) {
         Scope old = scope;
-        scope = new Scope(old);
+        boolean oldRepeating = repeating;
+        scope = frame == null ? new Scope(old) : old;
+        repeating = false;
         try {
             if (ast.getInitialization() != null) {
                 visit(ast.getInitialization());
             }
             while (requireType(Boolean.class, visit(ast.getCondition()))) {
-                for (Ast.Statement s : ast.getStatements()) {
-                    visit(s);
+                if (execute(ast.getStatements()) == RETURN) {
+                    return RETURN;
                 }
+                repeating = true;
                 if (ast.getIncrement() != null) {
                     visit(ast.getIncrement());
                 }
             }
         } finally {
             scope = old;
+            repeating = oldRepeating;
         }
         return Environment.NIL;
     }
@@ -160,23 +229,40 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     @Override
     public Environment.PlcObject visit(Ast.Statement.While ast) {
         Scope old = scope;
-        scope = new Scope(old);
+        boolean oldRepeating = repeating;
+        scope = frame == null ? new Scope(old) : old;
+        repeating = false;
         try {
             while (requireType(Boolean.class, visit(ast.getCondition()))) {
-                for (Ast.Statement s : ast.getStatements()) {
-                    visit(s);
+                if (execute(ast.getStatements()) == RETURN) {
+                    return RETURN;
                 }
+                repeating = true;
             }
         } finally {
             scope = old;
+            repeating = oldRepeating;
         }
         return Environment.NIL;
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Statement.Return ast) {
-        Environment.PlcObject v = visit(ast.getValue());
-        throw new Return(v);
+        returned = visit(ast.getValue());
+        return RETURN;
+    }
+
+    /**
+     * Executes statements in order, stopping at one that returns, in which
+     * case {@link #RETURN} is returned.
+     */
+    private Environment.PlcObject execute(List<Ast.Statement> statements) {
+        for (Ast.Statement s : statements) {
+            if (visit(s) == RETURN) {
+                return RETURN;
+            }
+        }
+        return Environment.NIL;
     }
 
     @Override
@@ -189,33 +275,107 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
 
     @Override
     public Environment.PlcObject visit(Ast.Expression.Group ast) {
-        return visit(ast.getExpression());
+        return evaluateOperators(ast);
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Expression.Binary ast) {
-        String op = ast.getOperator();
+        return evaluateOperators(ast);
+    }
 
-        if (op.equals("AND") || op.equals("&&")) {
-            Boolean left = requireType(Boolean.class, visit(ast.getLeft()));
-            if (!left) {
-                return Environment.create(false);
+    /**
+     * Evaluates a tree of binary and group expressions using an explicit stack
+     * of pending nodes and a stack of operand values, instead of recursion, so
+     * long operator chains and deeply nested groups do not overflow the Java
+     * stack. A binary node is popped once to evaluate its left operand and
+     * again once the left value is available, at which point a logical
+     * operator may short-circuit instead of evaluating the right operand. Any
+     * other expression is evaluated with {@link #visit(Ast)}.
+     *
+     * Integers that fit in a long are kept as longs on the operand stack, so
+     * the intermediate results of arithmetic are neither big numbers nor
+     * objects (see {@link #evaluate(String, long, long, Operands)}).
+     */
+    private Environment.PlcObject evaluateOperators(Ast.Expression root) {
+        int base = nodes.size();
+        int bottom = values.size();
+        try {
+            return evaluateOperators(root, base);
+        } finally {
+            // only left behind if evaluation threw
+            while (nodes.size() > base) {
+                nodes.pop();
+                stages.pop();
             }
-            Boolean right = requireType(Boolean.class, visit(ast.getRight()));
-            return Environment.create(left && right);
+            values.truncate(bottom);
         }
+    }
 
-        if (op.equals("OR") || op.equals("||")) {
-            Boolean left = requireType(Boolean.class, visit(ast.getLeft()));
-            if (left) {
-                return Environment.create(true);
+    private Environment.PlcObject evaluateOperators(Ast.Expression root, int base) {
+        Deque<Ast.Expression> nodes = this.nodes;
+        Deque<Integer> stages = this.stages;
+        Operands values = this.values;
+        nodes.push(root);
+        stages.push(0);
+        while (nodes.size() > base) {
+            Ast.Expression node = nodes.pop();
+            int stage = stages.pop();
+            if (node instanceof Ast.Expression.Group) {
+                nodes.push(((Ast.Expression.Group) node).getExpression());
+                stages.push(0);
+            } else if (node instanceof Ast.Expression.Literal
+                    && ((Ast.Expression.Literal) node).getLiteral() instanceof BigInteger
+                    && ((BigInteger) ((Ast.Expression.Literal) node).getLiteral()).bitLength() < 64) {
+                values.push(((BigInteger) ((Ast.Expression.Literal) node).getLiteral()).longValue());
+            } else if (!(node instanceof Ast.Expression.Binary)) {
+                values.push(visit(node));
+            } else {
+                Ast.Expression.Binary binary = (Ast.Expression.Binary) node;
+                String op = binary.getOperator();
+                boolean logical = op.equals("AND") || op.equals("&&") || op.equals("OR") || op.equals("||");
+                if (stage == 0) {
+                    // evaluate the left operand, then come back to this node
+                    nodes.push(binary);
+                    stages.push(1);
+                    nodes.push(binary.getLeft());
+                    stages.push(0);
+                } else if (stage == 1) {
+                    if (logical) {
+                        Boolean left = requireType(Boolean.class, values.peek());
+                        if (left == (op.equals("OR") || op.equals("||"))) {
+                            values.pop();
+                            values.push(Environment.create(left));
+                            continue;
+                        }
+                    }
+                    nodes.push(binary);
+                    stages.push(2);
+                    nodes.push(binary.getRight());
+                    stages.push(0);
+                } else if (!logical && values.isLong(0) && values.isLong(1)) {
+                    long right = values.popLong();
+                    long left = values.popLong();
+                    if (!evaluate(op, left, right, values)) {
+                        values.push(evaluate(op, Environment.createInteger(left), Environment.createInteger(right)));
+                    }
+                } else {
+                    Environment.PlcObject right = values.pop();
+                    Environment.PlcObject left = values.pop();
+                    if (logical) {
+                        values.push(Environment.create(requireType(Boolean.class, right)));
+                    } else {
+                        values.push(evaluate(op, left, right));
+                    }
+                }
             }
-            Boolean right = requireType(Boolean.class, visit(ast.getRight()));
-            return Environment.create(left || right);
         }
+        return values.pop();
+    }
 
-        Environment.PlcObject lObj = visit(ast.getLeft());
-        Environment.PlcObject rObj = visit(ast.getRight());
+    /**
+     * Applies a non-logical binary operator to evaluated operands.
+     */
+    private Environment.PlcObject evaluate(String op, Environment.PlcObject lObj, Environment.PlcObject rObj) {
         Object L = lObj.getValue();
         Object R = rObj.getValue();
 
@@ -293,19 +453,138 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         throw new RuntimeException("Unknown operator: " + op);
     }
 
+    /**
+     * Applies a non-logical binary operator to integers kept as longs, with
+     * the same result as on {@link BigInteger}s, and pushes the result.
+     * Returns {@code false} without pushing anything if the result does not
+     * fit in a long (or the operator is unknown), so the operands are
+     * promoted and it is applied to them as big numbers instead.
+     */
+    private static boolean evaluate(String op, long l, long r, Operands values) {
+        try {
+            switch (op) {
+                case "==": values.push(Environment.create(l == r)); return true;
+                case "!=": values.push(Environment.create(l != r)); return true;
+                case "<":  values.push(Environment.create(l < r)); return true;
+                case "<=": values.push(Environment.create(l <= r)); return true;
+                case ">":  values.push(Environment.create(l > r)); return true;
+                case ">=": values.push(Environment.create(l >= r)); return true;
+                case "+":  values.push(Math.addExact(l, r)); return true;
+                case "-":  values.push(Math.subtractExact(l, r)); return true;
+                case "*":  values.push(Math.multiplyExact(l, r)); return true;
+                case "/":
+                    if (r == 0) throw new RuntimeException("Division by zero.");
+                    // both truncate toward zero, and only this overflows
+                    if (l == Long.MIN_VALUE && r == -1) return false;
+                    values.push(l / r);
+                    return true;
+                default:   return false;
+            }
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The operand stack of {@link #evaluateOperators(Ast.Expression)}, which
+     * holds integers that fit in a long as longs and other values as objects,
+     * creating an object for a long only when it is popped as one.
+     */
+    private static final class Operands {
+
+        private long[] longs = new long[8];
+        private Environment.PlcObject[] objects = new Environment.PlcObject[8];
+        private int size = 0;
+
+        void push(Environment.PlcObject value) {
+            if (value.isLong()) {
+                push(value.getLong());
+            } else {
+                grow();
+                objects[size++] = value;
+            }
+        }
+
+        void push(long value) {
+            grow();
+            objects[size] = null;
+            longs[size++] = value;
+        }
+
+        /**
+         * Returns whether the value {@code depth} below the top is a long.
+         */
+        boolean isLong(int depth) {
+            return objects[size - 1 - depth] == null;
+        }
+
+        long popLong() {
+            return longs[--size];
+        }
+
+        Environment.PlcObject pop() {
+            Environment.PlcObject value = peek();
+            objects[--size] = null;
+            return value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Removes the values above the given size.
+         */
+        void truncate(int size) {
+            Arrays.fill(objects, size, this.size, null);
+            this.size = size;
+        }
+
+        Environment.PlcObject peek() {
+            Environment.PlcObject value = objects[size - 1];
+            return value != null ? value : Environment.createInteger(longs[size - 1]);
+        }
+
+        private void grow() {
+            if (size == longs.length) {
+                longs = Arrays.copyOf(longs, 2 * size);
+                objects = Arrays.copyOf(objects, 2 * size);
+            }
+        }
+
+    }
+
     @Override
     public Environment.PlcObject visit(Ast.Expression.Access ast) {
         if (ast.getReceiver().isPresent()) {
             Environment.PlcObject obj = visit(ast.getReceiver().get());
             return obj.getField(ast.getName()).getValue();
+        } else if (frame != null && ast.getVariable().getDepth() == 1) {
+            return frame[ast.getVariable().getSlot()];
+        } else if (frame != null && ast.getVariable().getDepth() == 0) {
+            return lookupField(ast).getValue();
         } else {
             return scope.lookupVariable(ast.getName()).getValue();
         }
     }
 
+    /**
+     * Returns the field accessed by the given expression from the slot the
+     * {@link Analyzer} gave it, if this interpreter defined that field there.
+     * Otherwise, such as when the method was visited directly or the fields
+     * were visited in another order, the field is looked up by name.
+     */
+    private Environment.Variable lookupField(Ast.Expression.Access ast) {
+        int slot = ast.getVariable().getSlot();
+        if (slot < fields.size() && fields.get(slot).getName().equals(ast.getName())) {
+            return fields.get(slot);
+        }
+        return scope.lookupVariable(ast.getName());
+    }
+
     @Override
     public Environment.PlcObject visit(Ast.Expression.Function ast) {
-        List<Environment.PlcObject> args = new ArrayList<>();
+        List<Environment.PlcObject> args = new ArrayList<>(ast.getArguments().size());
         for (Ast.Expression e : ast.getArguments()) {
             args.add(visit(e));
         }
@@ -313,33 +592,70 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
             Environment.PlcObject obj = visit(ast.getReceiver().get());
             return obj.callMethod(ast.getName(), args);
         } else {
-            Environment.Function f = scope.lookupFunction(ast.getName(), args.size());
-            return f.invoke(args);
+            return lookupFunction(ast, args.size()).invoke(args);
         }
     }
 
     /**
-     * Helper function to ensure an object is of the appropriate type.
+     * Looks up the function called by the given expression, using the one
+     * cached on the expression if it was looked up from the same scope and no
+     * function has been defined since in the scopes from there up to the one
+     * it was found in (see {@link Scope#getVersion(Scope)}), so defining
+     * functions in other scopes, such as those of other interpreters, does
+     * not affect it. Analyzed methods run in the scope they
+     * were defined in (see {@link #frame}), so every call from one of them
+     * after the first is a hit, without building the key of the function or
+     * walking the scopes. Unanalyzed methods run in a new scope for each call
+     * and block, where the cache would never hit, so it is not used there.
      */
-    private static <T> T requireType(Class<T> type, Environment.PlcObject object) {
-        if (type.isInstance(object.getValue())) {
-            return type.cast(object.getValue());
-        } else {
-            throw new RuntimeException("Expected type " + type.getName() + ", received " + object.getValue().getClass().getName() + ".");
+    private Environment.Function lookupFunction(Ast.Expression.Function ast, int arity) {
+        if (frame == null) {
+            return scope.lookupFunction(ast.getName(), arity);
+        }
+        CallSite site = ast.getCallSite();
+        if (site == null || site.scope != scope || scope.getVersion(site.owner) != site.version) {
+            Environment.Function function = scope.lookupFunction(ast.getName(), arity);
+            Scope owner = scope;
+            while (owner.functions.get(ast.getName() + "/" + arity) != function) {
+                owner = owner.getParent();
+            }
+            site = new CallSite(scope, owner, scope.getVersion(owner), function);
+            ast.setCallSite(site);
         }
+        return site.function;
     }
 
     /**
-     * Exception class for returning values.
+     * A function looked up by a call, which is cached on the call. Expressions
+     * may be shared between interpreters and threads (see {@link
+     * AstInterner}), so the cache is replaced as a whole rather than updated,
+     * and a call used from several scopes only misses more often.
      */
-    private static class Return extends RuntimeException {
+    static final class CallSite {
+
+        private final Scope scope;
+        private final Scope owner;
+        private final int version;
+        private final Environment.Function function;
+
+        private CallSite(Scope scope, Scope owner, int version, Environment.Function function) {
+            this.scope = scope;
+            this.owner = owner;
+            this.version = version;
+            this.function = function;
+        }
 
-        private final Environment.PlcObject value;
+    }
 
-        private Return(Environment.PlcObject value) {
-            this.value = value;
+    /**
+     * Helper function to ensure an object is of the appropriate type.
+     */
+    private static <T> T requireType(Class<T> type, Environment.PlcObject object) {
+        if (type.isInstance(object.getValue())) {
+            return type.cast(object.getValue());
+        } else {
+            throw new RuntimeException("Expected type " + type.getName() + ", received " + object.getValue().getClass().getName() + ".");
         }
-
     }
 
 }
@@ -2,6 +2,10 @@ package plc.project;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The lexer works through three main functions:
@@ -14,19 +18,75 @@ import java.util.ArrayList;
  * should throw a {@link ParseException} with an index at the invalid character.
  *
  * The {@link #peek(String...)} and {@link #match(String...)} functions are
- * helpers you need to use, they will make the implementation easier.
+ * general regex helpers. The lex methods themselves test characters against
+ * a precomputed table of character classes, since compiling a regex for every
+ * character dominated lexing time on large inputs.
  */
 public final class Lexer {
 
+    /*
+     * Character classes for the ASCII range, precomputed once so the lexing
+     * methods test a table entry instead of compiling a regex per character.
+     * Characters outside of ASCII belong to no class, which matches the
+     * behavior of the ASCII-only patterns used by peek/match.
+     */
+    private static final int IDENTIFIER_START = 1;
+    private static final int IDENTIFIER_PART = 1 << 1;
+    private static final int DIGIT = 1 << 2;
+    private static final int NONZERO_DIGIT = 1 << 3;
+    private static final int SIGN = 1 << 4;
+    private static final int WHITESPACE = 1 << 5;
+    private static final int LINE_BREAK = 1 << 6;
+    private static final int ESCAPE = 1 << 7;
+    private static final int COMPARISON = 1 << 8;
+
+    private static final int[] CLASSES = new int[128];
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) {
+            CLASSES[c] |= IDENTIFIER_START | IDENTIFIER_PART;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] |= IDENTIFIER_START | IDENTIFIER_PART;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] |= IDENTIFIER_PART | DIGIT | (c != '0' ? NONZERO_DIGIT : 0);
+        }
+        CLASSES['_'] |= IDENTIFIER_START | IDENTIFIER_PART;
+        CLASSES['-'] |= IDENTIFIER_PART | SIGN;
+        CLASSES['+'] |= SIGN;
+        for (char c : " \b\n\r\t".toCharArray()) {
+            CLASSES[c] |= WHITESPACE;
+        }
+        CLASSES['\n'] |= LINE_BREAK;
+        CLASSES['\r'] |= LINE_BREAK;
+        for (char c : "bnrt'\"\\".toCharArray()) {
+            CLASSES[c] |= ESCAPE;
+        }
+        for (char c : "<>!=".toCharArray()) {
+            CLASSES[c] |= COMPARISON;
+        }
+    }
+
+    /**
+     * The minimum chunk size for {@link #lexParallel(ForkJoinPool)}, below which
+     * the overhead of scheduling a chunk outweighs lexing it.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
     private final CharStream chars;
 
-    public Lexer(String input) {
+    /**
+     * Creates a lexer for the given input, which is usually a {@link String}
+     * but may also be a {@link MappedSource} to lex a file without reading it
+     * onto the heap first.
+     */
+    public Lexer(CharSequence input) {
         chars = new CharStream(input);
     }
 
-    // Workaround: Direct whitespace char check since peek/match of \\b throws exception
-    private static boolean isWhitespaceChar(char c) {
-        return c == ' ' || c == '\b' || c == '\n' || c == '\r' || c == '\t';
+    private Lexer(CharSequence input, int start, int end) {
+        chars = new CharStream(input, start, end);
     }
 
     /**
@@ -35,18 +95,120 @@ public final class Lexer {
      */
     public List<Token> lex() {
         List<Token> tokens = new ArrayList<>();
-        while (chars.has(0)) {
-            //while (match("[ \\t\\r\\n]")) {  // match \\b throws exception
-            while (chars.has(0) && isWhitespaceChar(chars.get(0))) {
-                chars.advance();
-                chars.skip();
+        while (skipWhitespace()) {
+            tokens.add(lexToken());
+        }
+        return tokens;
+    }
+
+    /**
+     * Lexes the input after an edit, reusing the tokens from before it. The
+     * edit replaced {@code deleted} characters at {@code offset} with
+     * {@code inserted}, and this lexer's input is the text after the edit.
+     *
+     * As in {@link #lexParallel(ForkJoinPool)}, no token may contain a line
+     * break, so lexing can resume at any line start. Only the lines touched by
+     * the edit are lexed again: tokens before them are reused as they are, and
+     * tokens after them are reused with their index shifted by the change in
+     * length. The result is a view over the previous tokens (which must not be
+     * modified afterwards), so the time taken depends on the length of the
+     * edited lines rather than the size of the input.
+     */
+    public List<Token> relex(List<Token> previous, int offset, int deleted, String inserted) {
+        CharSequence input = chars.input;
+        int end = offset + inserted.length();
+        if (offset < 0 || deleted < 0 || end > input.length()
+                || !inserted.contentEquals(input.subSequence(offset, end))) {
+            throw new IllegalArgumentException("The edit does not match the input.");
+        }
+        int start = offset;
+        while (start > 0 && !isLineBreak(input.charAt(start - 1))) {
+            start--;
+        }
+        while (end < input.length() && !isLineBreak(input.charAt(end))) {
+            end++;
+        }
+        if (end < input.length()) {
+            end++;
+        }
+        int delta = inserted.length() - deleted;
+        int head = SplicedTokenList.search(previous, start);
+        int tail = SplicedTokenList.search(previous, end - delta);
+        List<Token> middle = new Lexer(input, start, end).lex();
+        return SplicedTokenList.splice(previous, head, middle, tail, delta);
+    }
+
+    /**
+     * Lexes the next token, skipping over whitespace before it, or returns
+     * {@code null} if there are no tokens left. This allows a consumer such as
+     * the {@link Parser} to pull tokens as they are needed rather than holding
+     * every token at once.
+     */
+    public Token lexNext() {
+        return skipWhitespace() ? lexToken() : null;
+    }
+
+    /**
+     * Lexes the input the same way as {@link #lex()}, but stores the tokens in
+     * a {@link TokenBuffer} instead of creating a {@link Token} for each one.
+     */
+    public TokenBuffer lexBuffer() {
+        TokenBuffer tokens = new TokenBuffer(chars.input);
+        while (skipWhitespace()) {
+            chars.emit(scanToken(), tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * Lexes the input the same way as {@link #lex()}, but splits it into chunks
+     * at line breaks and lexes the chunks in parallel on the given pool.
+     *
+     * Since no token (including string and character literals) may contain a
+     * line break, each chunk lexes independently and produces exactly the
+     * tokens {@link #lex()} would for that range. Chunks are lexed over the
+     * original input, so token indices are already absolute. If any chunk
+     * fails, the exception of the first failing chunk is thrown, which is the
+     * same exception {@link #lex()} would throw.
+     */
+    public List<Token> lexParallel(ForkJoinPool pool) {
+        int size = Math.max(MIN_CHUNK_SIZE, (chars.end - chars.index) / (4 * pool.getParallelism()) + 1);
+        return lexParallel(pool, size);
+    }
+
+    List<Token> lexParallel(ForkJoinPool pool, int size) {
+        CharSequence input = chars.input;
+        List<Callable<List<Token>>> chunks = new ArrayList<>();
+        int start = chars.index;
+        while (start < chars.end) {
+            int end = Math.min(start + size, chars.end);
+            while (end < chars.end && input.charAt(end - 1) != '\n') {
+                end++;
+            }
+            int chunkStart = start;
+            int chunkEnd = end;
+            chunks.add(() -> new Lexer(input, chunkStart, chunkEnd).lex());
+            start = end;
+        }
+        if (chunks.size() <= 1) {
+            return lex();
+        }
+        List<Token> tokens = new ArrayList<>();
+        try {
+            for (Future<List<Token>> chunk : pool.invokeAll(chunks)) {
+                tokens.addAll(chunk.get());
             }
-            if (!chars.has(0)) {
-                break;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            chars.skip();
-            tokens.add(lexToken());
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while lexing.", e);
         }
+        chars.index = chars.end;
+        chars.skip();
         return tokens;
     }
 
@@ -59,95 +221,136 @@ public final class Lexer {
      * by {@link #lex()}
      */
     public Token lexToken() {
-        if (peek("[A-Za-z_]")) {
-            return lexIdentifier();
-        } else if (
-            // signed non-zero int, i.e. -1, +2, etc
-                peek("[+-]", "[1-9]") ||
-                        // signed zero-decimal, i.e. -0.5, +0.5, etc
-                        peek("[+-]", "0", "\\.", "[0-9]") ||
-                        peek("[0-9]")
-        ) {
-            return lexNumber();
-        } else if (peek("'")) {
-            return lexCharacter();
-        } else if (peek("\"")) {
-            return lexString();
+        return chars.emit(scanToken());
+    }
+
+    public Token lexIdentifier() {
+        return chars.emit(scanIdentifier());
+    }
+
+    public Token lexNumber() {
+        return chars.emit(scanNumber());
+    }
+
+    public Token lexCharacter() {
+        return chars.emit(scanCharacter());
+    }
+
+    public Token lexString() {
+        return chars.emit(scanString());
+    }
+
+    public Token lexOperator() {
+        return chars.emit(scanOperator());
+    }
+
+    /**
+     * Skips whitespace before the next token, returning true if there is a
+     * token left to lex.
+     */
+    private boolean skipWhitespace() {
+        while (peekClass(0, WHITESPACE)) {
+            chars.advance();
+        }
+        chars.skip();
+        return chars.has(0);
+    }
+
+    /**
+     * The scan methods below match a single token, returning its type and
+     * leaving the char stream positioned at its end so the caller can emit it
+     * either as a {@link Token} or into a {@link TokenBuffer}.
+     */
+    private Token.Type scanToken() {
+        if (peekClass(0, IDENTIFIER_START)) {
+            return scanIdentifier();
+        } else if (peekSignedNumber() || peekClass(0, DIGIT)) {
+            return scanNumber();
+        } else if (peekChar(0, '\'')) {
+            return scanCharacter();
+        } else if (peekChar(0, '"')) {
+            return scanString();
         } else {
-            return lexOperator();
+            return scanOperator();
         }
     }
 
-    public Token lexIdentifier() {
-        if (!match("[A-Za-z_]")) {
+    private Token.Type scanIdentifier() {
+        if (!matchClass(IDENTIFIER_START)) {
             throw new ParseException("Expected identifier start.", chars.index);
         }
-        while (match("[A-Za-z0-9_-]")) {
+        while (matchClass(IDENTIFIER_PART)) {
             // consume
         }
-        return chars.emit(Token.Type.IDENTIFIER);
+        return Token.Type.IDENTIFIER;
     }
 
-    public Token lexNumber() {
+    private Token.Type scanNumber() {
         // Only consume sign if it actually begins a valid number
-        if (peek("[+-]", "[1-9]") || peek("[+-]", "0", "\\.", "[0-9]")) {
-            match("[+-]");
+        if (peekSignedNumber()) {
+            chars.advance();
         }
 
-        if (match("0")) {
-            if (peek("\\.", "[0-9]")) {
-                match("\\.", "[0-9]");
-                while (match("[0-9]")) {}
-                return chars.emit(Token.Type.DECIMAL);
+        if (matchChar('0')) {
+            if (peekFraction()) {
+                chars.advance();
+                while (matchClass(DIGIT)) {}
+                return Token.Type.DECIMAL;
             } else {
-                return chars.emit(Token.Type.INTEGER);
+                return Token.Type.INTEGER;
             }
-        } else if (match("[1-9]")) {
-            while (match("[0-9]")) {}
-            if (peek("\\.", "[0-9]")) {
-                match("\\.", "[0-9]");
-                while (match("[0-9]")) {}
-                return chars.emit(Token.Type.DECIMAL);
+        } else if (matchClass(NONZERO_DIGIT)) {
+            while (matchClass(DIGIT)) {}
+            if (peekFraction()) {
+                chars.advance();
+                while (matchClass(DIGIT)) {}
+                return Token.Type.DECIMAL;
             } else {
-                return chars.emit(Token.Type.INTEGER);
+                return Token.Type.INTEGER;
             }
         } else {
             throw new ParseException("Invalid number.", chars.index);
         }
     }
 
-    public Token lexCharacter() {
-        if (!match("'")) {
+    private Token.Type scanCharacter() {
+        if (!matchChar('\'')) {
             throw new ParseException("Expected opening single quote for character.", chars.index);
         }
-        if (!chars.has(0) || peek("[\\n\\r]")) {
+        if (!chars.has(0) || peekClass(0, LINE_BREAK)) {
             throw new ParseException("Unterminated or invalid character literal.", chars.index);
         }
-        if (match("\\\\")) {
+        if (matchChar('\\')) {
             lexEscape();
         } else {
-            if (peek("'")) {
+            if (peekChar(0, '\'')) {
                 throw new ParseException("Empty character literal.", chars.index);
             }
             chars.advance();
+            // a character from a byte source may be a multi-byte UTF-8 sequence
+            while (chars.bytes && chars.has(0) && (chars.get(0) & 0xC0) == 0x80) {
+                chars.advance();
+            }
         }
-        if (!match("'")) {
+        if (!matchChar('\'')) {
             throw new ParseException("Unterminated character literal.", chars.index);
         }
-        return chars.emit(Token.Type.CHARACTER);
+        return Token.Type.CHARACTER;
     }
 
-    public Token lexString() {
-        if (!match("\"")) {
+    private Token.Type scanString() {
+        if (!matchChar('"')) {
             throw new ParseException("Expected opening quote for string.", chars.index);
         }
         while (chars.has(0)) {
-            if (peek("\"")) {
-                match("\"");
-                return chars.emit(Token.Type.STRING);
-            } else if (peek("[\\n\\r]")) {
+            char c = chars.get(0);
+            if (c == '"') {
+                chars.advance();
+                return Token.Type.STRING;
+            } else if (c == '\n' || c == '\r') {
                 throw new ParseException("String literal cannot span lines.", chars.index);
-            } else if (match("\\\\")) {
+            } else if (c == '\\') {
+                chars.advance();
                 lexEscape();
             } else {
                 chars.advance();
@@ -160,32 +363,77 @@ public final class Lexer {
         if (!chars.has(0)) {
             throw new ParseException("Unterminated escape sequence.", chars.index);
         }
-        if (!match("[bnrt'\"\\\\]")) {
+        if (!matchClass(ESCAPE)) {
             throw new ParseException("Invalid escape sequence.", chars.index);
         }
     }
 
-    public Token lexOperator() {
-        if (peek("[<>!=]", "=")) {
-            match("[<>!=]", "=");
-            return chars.emit(Token.Type.OPERATOR);
+    private Token.Type scanOperator() {
+        if (peekClass(0, COMPARISON) && peekChar(1, '=')
+                || peekChar(0, '&') && peekChar(1, '&')
+                || peekChar(0, '|') && peekChar(1, '|')) {
+            chars.advance();
+            chars.advance();
+            return Token.Type.OPERATOR;
         }
-        if (peek("&", "&")) {
-            match("&", "&");
-            return chars.emit(Token.Type.OPERATOR);
+        if (!chars.has(0) || peekClass(0, WHITESPACE)) {
+            throw new ParseException("Expected operator.", chars.index);
         }
-        if (peek("\\|", "\\|")) {
-            match("\\|", "\\|");
-            return chars.emit(Token.Type.OPERATOR);
+        chars.advance();
+        return Token.Type.OPERATOR;
+    }
+
+    /**
+     * Returns true if the next characters are a sign that begins a number,
+     * which is either {@code [+-][1-9]} or {@code [+-]0\.[0-9]}.
+     */
+    private boolean peekSignedNumber() {
+        return peekClass(0, SIGN) && (peekClass(1, NONZERO_DIGIT)
+                || peekChar(1, '0') && peekChar(2, '.') && peekClass(3, DIGIT));
+    }
+
+    /**
+     * Returns true if the next characters are a decimal point followed by a
+     * digit, aka {@code \.[0-9]}.
+     */
+    private boolean peekFraction() {
+        return peekChar(0, '.') && peekClass(1, DIGIT);
+    }
+
+    /**
+     * Returns true if the character at the given offset belongs to any of the
+     * given character classes.
+     */
+    private boolean peekClass(int offset, int classes) {
+        if (!chars.has(offset)) {
+            return false;
         }
-        if (!chars.has(0)) {
-            throw new ParseException("Expected operator.", chars.index);
+        char c = chars.get(offset);
+        return c < CLASSES.length && (CLASSES[c] & classes) != 0;
+    }
+
+    static boolean isLineBreak(char c) {
+        return c < CLASSES.length && (CLASSES[c] & LINE_BREAK) != 0;
+    }
+
+    private boolean peekChar(int offset, char expected) {
+        return chars.has(offset) && chars.get(offset) == expected;
+    }
+
+    private boolean matchClass(int classes) {
+        boolean peek = peekClass(0, classes);
+        if (peek) {
+            chars.advance();
         }
-        if (isWhitespaceChar(chars.get(0))) {
-            throw new ParseException("Expected operator.", chars.index);
+        return peek;
+    }
+
+    private boolean matchChar(char expected) {
+        boolean peek = peekChar(0, expected);
+        if (peek) {
+            chars.advance();
         }
-        chars.advance();
-        return chars.emit(Token.Type.OPERATOR);
+        return peek;
     }
 
     /**
@@ -218,7 +466,7 @@ public final class Lexer {
     }
 
     /**
-     * A helper class maintaining the input string, current index of the char
+     * A helper class maintaining the input sequence, current index of the char
      * stream, and the current length of the token being matched.
      *
      * You should rely on peek/match for state management in nearly all cases.
@@ -227,16 +475,29 @@ public final class Lexer {
      */
     public static final class CharStream {
 
-        private final String input;
+        private final CharSequence input;
+        private final boolean bytes;
+        private final int end;
         private int index = 0;
         private int length = 0;
 
-        public CharStream(String input) {
+        public CharStream(CharSequence input) {
+            this(input, 0, input.length());
+        }
+
+        /**
+         * Creates a char stream over the range [start, end) of the input, which
+         * reports indices relative to the full input.
+         */
+        public CharStream(CharSequence input, int start, int end) {
             this.input = input;
+            this.bytes = input instanceof MappedSource;
+            this.index = start;
+            this.end = end;
         }
 
         public boolean has(int offset) {
-            return index + offset < input.length();
+            return index + offset < end;
         }
 
         public char get(int offset) {
@@ -255,7 +516,12 @@ public final class Lexer {
         public Token emit(Token.Type type) {
             int start = index - length;
             skip();
-            return new Token(type, input.substring(start, index), start);
+            return new Token(type, input.subSequence(start, index).toString(), start, index - start);
+        }
+
+        public void emit(Token.Type type, TokenBuffer tokens) {
+            tokens.add(type, index - length, length);
+            skip();
         }
 
     }
@@ -0,0 +1,85 @@
+package plc.project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link CharSequence} view of a memory-mapped source file, which allows the
+ * {@link Lexer} to work directly on the mapped bytes instead of a decoded copy
+ * of the file on the heap.
+ *
+ * Each byte is presented as one character, so indices (including those of
+ * tokens and {@link ParseException}s) are byte offsets into the file. These are
+ * the same as character indices for ASCII sources; non-ASCII characters only
+ * appear in string and character literals, which are decoded as UTF-8 by
+ * {@link #toString()} when the literal is requested.
+ */
+public final class MappedSource implements CharSequence {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Maps the file at the given path read-only. The mapping remains valid
+     * after this method returns, even though the channel is closed.
+     */
+    public static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The file " + path + " is too large to map (" + size + " bytes).");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedSource(buffer, 0, (int) size);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length + ".");
+        }
+        return (char) (buffer.get(offset + index) & 0xFF);
+    }
+
+    /**
+     * Returns a view of the given range, sharing the mapped bytes.
+     */
+    @Override
+    public MappedSource subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") out of bounds for length " + length + ".");
+        }
+        return new MappedSource(buffer, offset + start, end - start);
+    }
+
+    /**
+     * Decodes the bytes of this sequence as UTF-8.
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
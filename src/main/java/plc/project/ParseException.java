@@ -9,6 +9,16 @@ public final class ParseException extends RuntimeException {
         this.index = index;
     }
 
+    /**
+     * Creates an exception without a stack trace, which is not needed (and
+     * costly to fill in) for errors that are recorded rather than thrown to
+     * the caller, such as by {@link Parser#parseSourceRecovering(java.util.List)}.
+     */
+    ParseException(String message, int index, boolean stackTrace) {
+        super(message, null, false, stackTrace);
+        this.index = index;
+    }
+
     public int getIndex() {
         return index;
     }
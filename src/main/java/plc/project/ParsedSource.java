@@ -0,0 +1,99 @@
+package plc.project;
+
+import java.util.List;
+
+/**
+ * The tokens and AST of a source, along with the range of tokens of each
+ * field and method, so that the source can be parsed again after an edit
+ * without parsing the declarations the edit did not touch.
+ *
+ * Declarations are numbered with the fields first and then the methods, in
+ * source order, so declaration {@code i} is field {@code i} if {@code i} is
+ * less than the number of fields.
+ */
+public final class ParsedSource {
+
+    private final List<Token> tokens;
+    private final Ast.Source source;
+    private final int[] starts;
+    private final int[] ends;
+
+    ParsedSource(List<Token> tokens, Ast.Source source, int[] starts, int[] ends) {
+        this.tokens = tokens;
+        this.source = source;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Lexes and parses the given input, as in {@link Parser#parseSource()}.
+     */
+    public static ParsedSource parse(CharSequence input) throws ParseException {
+        List<Token> tokens = new Lexer(input).lex();
+        return new Parser(tokens).parseSource(tokens, null, 0, 0, 0);
+    }
+
+    /**
+     * Parses the source again after an edit, as in {@link
+     * Lexer#relex(List, int, int, String)}: the edit replaced {@code deleted}
+     * characters at {@code offset} with {@code inserted}, and {@code input} is
+     * the text after the edit.
+     *
+     * Only the lines touched by the edit are lexed again, so declarations
+     * that end before them are kept, and declarations that start after them
+     * have the same tokens (shifted by the change in length). Parsing resumes
+     * at the first declaration that may have changed and stops as soon as it
+     * reaches the start of an unchanged declaration after the edit, so the
+     * remaining declarations are kept as well. Kept declarations are the same
+     * {@link Ast.Field} and {@link Ast.Method} instances as in this source.
+     * This source is not modified, and may not be edited again afterwards.
+     */
+    public ParsedSource edit(CharSequence input, int offset, int deleted, String inserted) throws ParseException {
+        List<Token> edited = new Lexer(input).relex(tokens, offset, deleted, inserted);
+        int start = offset;
+        while (start > 0 && !Lexer.isLineBreak(input.charAt(start - 1))) {
+            start--;
+        }
+        int end = offset + inserted.length();
+        while (end < input.length() && !Lexer.isLineBreak(input.charAt(end))) {
+            end++;
+        }
+        if (end < input.length()) {
+            end++;
+        }
+        return new Parser(edited).parseSource(edited, this, start, end, inserted.length() - deleted);
+    }
+
+    public List<Token> getTokens() {
+        return tokens;
+    }
+
+    public Ast.Source getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the number of declarations, which is the number of fields plus
+     * the number of methods.
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the position in {@link #getTokens()} of the first token of the
+     * given declaration.
+     */
+    public int getStart(int declaration) {
+        return starts[declaration];
+    }
+
+    /**
+     * Returns the position in {@link #getTokens()} after the last token of the
+     * given declaration.
+     */
+    public int getEnd(int declaration) {
+        return ends[declaration];
+    }
+
+}
@@ -2,9 +2,16 @@ package plc.project;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The parser takes the sequence of tokens emitted by the lexer and turns that
@@ -21,69 +28,410 @@ import java.util.Optional;
  */
 public final class Parser {
 
+    /*
+     * Precedence levels of the binary operators, from lowest to highest. Tokens
+     * that are not binary operators have a precedence of zero, which is below
+     * every level and so ends an expression. The secondary and primary levels
+     * are above every operator, and limit an expression to a single operand
+     * (with and without trailing field accesses and method calls).
+     */
+    private static final int LOGICAL = 1;
+    private static final int EQUALITY = 2;
+    private static final int ADDITIVE = 3;
+    private static final int MULTIPLICATIVE = 4;
+    private static final int SECONDARY = 5;
+    private static final int PRIMARY = 6;
+
+    private static final int[] PRECEDENCE = new int[Token.Kind.values().length];
+
+    static {
+        for (Token.Kind kind : new Token.Kind[] {Token.Kind.AND, Token.Kind.AND_AND, Token.Kind.OR, Token.Kind.OR_OR}) {
+            PRECEDENCE[kind.ordinal()] = LOGICAL;
+        }
+        for (Token.Kind kind : new Token.Kind[] {Token.Kind.LESS, Token.Kind.LESS_EQUAL, Token.Kind.GREATER,
+                Token.Kind.GREATER_EQUAL, Token.Kind.EQUAL, Token.Kind.NOT_EQUAL}) {
+            PRECEDENCE[kind.ordinal()] = EQUALITY;
+        }
+        PRECEDENCE[Token.Kind.PLUS.ordinal()] = ADDITIVE;
+        PRECEDENCE[Token.Kind.MINUS.ordinal()] = ADDITIVE;
+        PRECEDENCE[Token.Kind.STAR.ordinal()] = MULTIPLICATIVE;
+        PRECEDENCE[Token.Kind.SLASH.ordinal()] = MULTIPLICATIVE;
+    }
+
     private final TokenStream tokens;
 
+    /*
+     * State of validateSource: the index of the first error (or -1), and the
+     * stack of open groups and argument lists in recognizeExpression.
+     */
+    private int recognizerError = -1;
+    private boolean[] recognizerGroups = new boolean[16];
+
+    /*
+     * The errors recorded by parseSourceRecovering, or null when not
+     * recovering from errors.
+     */
+    private List<ParseException> errors = null;
+
     public Parser(List<Token> tokens) {
-        this.tokens = new TokenStream(tokens);
+        this.tokens = new ListTokenStream(tokens);
+    }
+
+    /**
+     * Creates a parser reading directly from a {@link TokenBuffer}, which only
+     * creates the literals of tokens the parser actually extracts (such as
+     * names and values) rather than a {@link Token} per token.
+     */
+    public Parser(TokenBuffer tokens) {
+        this.tokens = new BufferTokenStream(tokens);
+    }
+
+    /**
+     * Creates a parser that pulls tokens from the lexer on demand, keeping only
+     * the few tokens needed for lookahead in a small ring buffer. Memory use is
+     * therefore independent of the size of the input, and lexing proceeds
+     * alongside parsing (including any lexing errors, which are thrown when the
+     * parser reaches them).
+     */
+    public Parser(Lexer lexer) {
+        this.tokens = new LexerTokenStream(lexer);
+    }
+
+    private Parser(TokenStream tokens) {
+        this.tokens = tokens;
     }
 
     /**
      * Parses the {@code source} rule.
      */
     public Ast.Source parseSource() throws ParseException {
-        // field* method*
+        return parseSource(false);
+    }
+
+    /**
+     * Parses the {@code source} rule as in {@link #parseSource()}, but only
+     * scans each method body for its matching {@code END} (counting the nested
+     * {@code IF}, {@code FOR}, and {@code WHILE} statements) rather than
+     * parsing it. The body is parsed the first time {@link
+     * Ast.Method#getStatements()} is called, so only the methods that are
+     * actually analyzed or invoked pay for parsing.
+     *
+     * Syntax errors within a body are therefore thrown from {@link
+     * Ast.Method#getStatements()} instead of here. A parser reading from a
+     * {@link Lexer} cannot revisit tokens, so it parses bodies eagerly.
+     */
+    public Ast.Source parseSourceLazily() throws ParseException {
+        return parseSource(true);
+    }
+
+    /**
+     * Parses the {@code source} rule as in {@link #parseSource()}, but parses
+     * methods in parallel on the given pool.
+     *
+     * After the fields, a pre-scan finds the range of each method (its {@code
+     * DO} and matching {@code END}, as in {@link #parseSourceLazily()}), and
+     * batches of consecutive methods are parsed on forked token streams. Each
+     * method must end where the scan found, which holds for any valid source;
+     * otherwise, the remaining methods are parsed sequentially from wherever
+     * that method actually ended. Batches are collected in source order, so
+     * the result (or the first exception) is the same as {@link
+     * #parseSource()}. A parser reading from a {@link Lexer} cannot revisit
+     * tokens, so it parses sequentially.
+     */
+    public Ast.Source parseSourceParallel(ForkJoinPool pool) throws ParseException {
+        return parseSourceParallel(pool, 4 * pool.getParallelism());
+    }
+
+    /**
+     * Parses the {@code source} rule as in {@link #parseSource()}, but stores
+     * each field and method in an {@link AstArena} as soon as it is parsed, so
+     * only one declaration at a time is held as {@link Ast} nodes.
+     */
+    public AstArena parseSourceArena() throws ParseException {
+        AstArena arena = new AstArena();
+        while (peek(Token.Kind.LET)) {
+            arena.add(parseField());
+        }
+        while (peek(Token.Kind.DEF)) {
+            arena.add(parseMethod());
+        }
+        if (tokens.has(0)) {
+            throw error("Unexpected token.");
+        }
+        arena.trim();
+        return arena;
+    }
+
+    Ast.Source parseSourceParallel(ForkJoinPool pool, int count) throws ParseException {
         List<Ast.Field> fields = new ArrayList<>();
         List<Ast.Method> methods = new ArrayList<>();
-        while (peek("LET")) {
+        while (peek(Token.Kind.LET)) {
             fields.add(parseField());
         }
-        while (peek("DEF")) {
+        TokenStream start = tokens.fork();
+        if (start != null) {
+            // ends.get(i) is the position after method i, and so the start of
+            // method i + 1
+            List<Integer> ends = new ArrayList<>();
+            while (peek(Token.Kind.DEF) && skipMethod()) {
+                ends.add(tokens.index);
+            }
+            tokens.index = start.index;
+            int batch = Math.max(1, (ends.size() + count - 1) / count);
+            if (ends.size() > batch) {
+                List<Parser> parsers = new ArrayList<>();
+                List<Callable<List<Ast.Method>>> batches = new ArrayList<>();
+                for (int from = 0; from < ends.size(); from += batch) {
+                    Parser parser = new Parser(tokens.fork());
+                    parser.tokens.index = from == 0 ? start.index : ends.get(from - 1);
+                    int first = from;
+                    int last = Math.min(from + batch, ends.size()) - 1;
+                    parsers.add(parser);
+                    batches.add(() -> parser.parseMethods(ends, first, last));
+                }
+                try {
+                    List<Future<List<Ast.Method>>> results = pool.invokeAll(batches);
+                    for (int i = 0; i < results.size(); i++) {
+                        methods.addAll(results.get(i).get());
+                        tokens.index = parsers.get(i).tokens.index;
+                        int last = Math.min((i + 1) * batch, ends.size()) - 1;
+                        if (tokens.index != ends.get(last)) {
+                            break;
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while parsing.", e);
+                }
+            }
+        }
+        while (peek(Token.Kind.DEF)) {
             methods.add(parseMethod());
         }
         if (tokens.has(0)) {
-            throw new ParseException("Unexpected token.", tokens.get(0).getIndex());
+            throw error("Unexpected token.");
         }
         return new Ast.Source(fields, methods);
     }
 
+    /**
+     * Parses methods {@code first} through {@code last} of those found by the
+     * pre-scan of {@link #parseSourceParallel(ForkJoinPool)}, stopping early if
+     * a method does not end where the scan found.
+     */
+    private List<Ast.Method> parseMethods(List<Integer> ends, int first, int last) throws ParseException {
+        List<Ast.Method> methods = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            methods.add(parseMethod());
+            if (tokens.index != ends.get(i)) {
+                break;
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Parses the {@code source} rule as in {@link #parseSource()}, but rather
+     * than throwing at the first syntax error, adds every error to the given
+     * list and returns the partial AST of what could be parsed.
+     *
+     * After an error in a statement, tokens are skipped through the next
+     * {@code ;}, or up to the next {@code END}, {@code LET}, or {@code DEF},
+     * and parsing continues with the next statement. The start of a method
+     * also ends any open blocks (recording the missing {@code END}). After an
+     * error at the top level, tokens are skipped up to the next method (or
+     * field, if no method has been seen). The recorded exceptions have no
+     * stack trace, so recording many errors stays cheap.
+     */
+    public Ast.Source parseSourceRecovering(List<ParseException> errors) {
+        this.errors = errors;
+        try {
+            List<Ast.Field> fields = new ArrayList<>();
+            List<Ast.Method> methods = new ArrayList<>();
+            boolean fieldsDone = false;
+            while (tokens.has(0)) {
+                int start = tokens.index;
+                boolean field = !fieldsDone && peek(Token.Kind.LET);
+                try {
+                    if (field) {
+                        fields.add(parseField());
+                    } else if (peek(Token.Kind.DEF)) {
+                        fieldsDone = true;
+                        methods.add(parseMethod());
+                    } else {
+                        throw error("Unexpected token.");
+                    }
+                } catch (ParseException e) {
+                    errors.add(e);
+                    // skip to the next method, or past the end of a field
+                    while (tokens.has(0)) {
+                        Token.Kind kind = tokens.getKind(0);
+                        if (tokens.index > start && (kind == Token.Kind.DEF || !fieldsDone && kind == Token.Kind.LET)) {
+                            break;
+                        }
+                        tokens.advance();
+                        if (field && kind == Token.Kind.SEMICOLON) {
+                            break;
+                        }
+                    }
+                }
+            }
+            return new Ast.Source(fields, methods);
+        } finally {
+            this.errors = null;
+        }
+    }
+
+    private Ast.Source parseSource(boolean lazy) throws ParseException {
+        // field* method*
+        List<Ast.Field> fields = new ArrayList<>();
+        List<Ast.Method> methods = new ArrayList<>();
+        while (peek(Token.Kind.LET)) {
+            fields.add(parseField());
+        }
+        while (peek(Token.Kind.DEF)) {
+            methods.add(parseMethod(lazy));
+        }
+        if (tokens.has(0)) {
+            throw error("Unexpected token.");
+        }
+        return new Ast.Source(fields, methods);
+    }
+
+    /**
+     * Parses the {@code source} rule as in {@link #parseSource()}, recording
+     * the range of each declaration, for {@link ParsedSource}. The given list
+     * must be the tokens of this parser.
+     *
+     * If {@code previous} is not null, the tokens are those of the previous
+     * source after an edit that lexed the characters from {@code start} to
+     * {@code end} (of the text after the edit) again and changed the length of
+     * the text by {@code delta}, as in {@link ParsedSource#edit(CharSequence,
+     * int, int, String)}. Declarations that end before {@code start} are kept
+     * as they are. Parsing then resumes as {@link #parseSource()} would at the
+     * next declaration, and each time a declaration ends, if the position is
+     * the (shifted) start of a previous declaration that starts after {@code
+     * end}, the remaining declarations are kept with their ranges shifted. A
+     * previous field is only kept if no method has been parsed yet, since
+     * otherwise the eager parser would fail there.
+     */
+    ParsedSource parseSource(List<Token> list, ParsedSource previous, int start, int end, int delta) throws ParseException {
+        List<Ast.Field> fields = new ArrayList<>();
+        List<Ast.Method> methods = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        int count = previous == null ? 0 : previous.size();
+        // head is the first previous declaration that may have changed, found
+        // by a binary search since declarations are in source order
+        int head = 0;
+        int high = count;
+        while (head < high) {
+            int mid = (head + high) >>> 1;
+            if (previous.getTokens().get(previous.getEnd(mid) - 1).getIndex() < start) {
+                head = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int fieldCount = previous == null ? 0 : previous.getSource().getFields().size();
+        int shift = previous == null ? 0 : list.size() - previous.getTokens().size();
+        if (head > 0) {
+            tokens.index = previous.getEnd(head - 1);
+        }
+        boolean fieldsDone = head > fieldCount;
+        // tail is the first previous declaration after the edit that is kept
+        int tail = head;
+        while (true) {
+            // skip previous declarations that start before this position or
+            // within the edited lines
+            while (tail < count && (previous.getStart(tail) + shift < tokens.index
+                    || previous.getTokens().get(previous.getStart(tail)).getIndex() + delta < end)) {
+                tail++;
+            }
+            if (tail < count && previous.getStart(tail) + shift == tokens.index && (tail >= fieldCount || !fieldsDone)) {
+                tokens.index = list.size();
+                break;
+            }
+            int first = tokens.index;
+            if (!fieldsDone && peek(Token.Kind.LET)) {
+                fields.add(parseField());
+            } else if (peek(Token.Kind.DEF)) {
+                fieldsDone = true;
+                methods.add(parseMethod());
+            } else {
+                tail = count;
+                break;
+            }
+            starts.add(first);
+            ends.add(tokens.index);
+        }
+        if (tokens.has(0)) {
+            throw error("Unexpected token.");
+        }
+        int size = head + starts.size() + count - tail;
+        int[] startArray = new int[size];
+        int[] endArray = new int[size];
+        for (int i = 0; i < head; i++) {
+            startArray[i] = previous.getStart(i);
+            endArray[i] = previous.getEnd(i);
+        }
+        for (int i = 0; i < starts.size(); i++) {
+            startArray[head + i] = starts.get(i);
+            endArray[head + i] = ends.get(i);
+        }
+        for (int i = tail; i < count; i++) {
+            startArray[size - count + i] = previous.getStart(i) + shift;
+            endArray[size - count + i] = previous.getEnd(i) + shift;
+        }
+        if (previous != null) {
+            List<Ast.Field> previousFields = previous.getSource().getFields();
+            List<Ast.Method> previousMethods = previous.getSource().getMethods();
+            fields.addAll(0, previousFields.subList(0, Math.min(head, fieldCount)));
+            fields.addAll(previousFields.subList(Math.min(tail, fieldCount), fieldCount));
+            methods.addAll(0, previousMethods.subList(0, Math.max(head - fieldCount, 0)));
+            methods.addAll(previousMethods.subList(Math.max(tail - fieldCount, 0), previousMethods.size()));
+        }
+        return new ParsedSource(list, new Ast.Source(fields, methods), startArray, endArray);
+    }
+
     /**
      * Parses the {@code field} rule. This method should only be called if the
      * next tokens start a field, aka {@code LET}.
      */
     public Ast.Field parseField() throws ParseException {
-        if (!match("LET")) {
-            if (tokens.has(0)) throw new ParseException("Expected LET.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected LET.", eofIndex());
+        if (!match(Token.Kind.LET)) {
+            throw error("Expected LET.");
         }
-        boolean constant = match("CONST");
+        boolean constant = match(Token.Kind.CONST);
 
         if (!peek(Token.Type.IDENTIFIER)) {
-            if (tokens.has(0)) throw new ParseException("Expected identifier.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected identifier.", eofIndex());
+            throw error("Expected identifier.");
         }
-        String name = tokens.get(0).getLiteral();
+        String name = tokens.getLiteral(0);
         tokens.advance();
 
-        if (!match(":")) {
-            if (tokens.has(0)) throw new ParseException("Expected ':'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ':'.", eofIndex());
+        if (!match(Token.Kind.COLON)) {
+            throw error("Expected ':'.");
         }
         if (!peek(Token.Type.IDENTIFIER)) {
-            if (tokens.has(0)) throw new ParseException("Expected type name.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected type name.", eofIndex());
+            throw error("Expected type name.");
         }
-        String typeName = tokens.get(0).getLiteral();
+        String typeName = tokens.getLiteral(0);
         tokens.advance();
 
         Optional<Ast.Expression> value = Optional.empty();
-        if (match("=")) {
-            if (!tokens.has(0)) throw new ParseException("Expected expression.", eofIndex());
+        if (match(Token.Kind.ASSIGN)) {
+            if (!tokens.has(0)) throw error("Expected expression.");
             value = Optional.of(parseExpression());
         }
 
-        if (!match(";")) {
-            if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ';'.", eofIndex());
+        if (!match(Token.Kind.SEMICOLON)) {
+            throw error("Expected ';'.");
         }
         return new Ast.Field(name, typeName, constant, value);
     }
@@ -93,94 +441,228 @@ public final class Parser {
      * next tokens start a method, aka {@code DEF}.
      */
     public Ast.Method parseMethod() throws ParseException {
-        if (!match("DEF")) {
-            if (tokens.has(0)) throw new ParseException("Expected DEF.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected DEF.", eofIndex());
+        return parseMethod(false);
+    }
+
+    private Ast.Method parseMethod(boolean lazy) throws ParseException {
+        if (!match(Token.Kind.DEF)) {
+            throw error("Expected DEF.");
         }
         if (!peek(Token.Type.IDENTIFIER)) {
-            if (tokens.has(0)) throw new ParseException("Expected identifier.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected identifier.", eofIndex());
+            throw error("Expected identifier.");
         }
-        String name = tokens.get(0).getLiteral();
+        String name = tokens.getLiteral(0);
         tokens.advance();
 
-        if (!match("(")) {
-            if (tokens.has(0)) throw new ParseException("Expected '('.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected '('.", eofIndex());
+        if (!match(Token.Kind.LEFT_PAREN)) {
+            throw error("Expected '('.");
         }
 
         List<String> params = new ArrayList<>();
         List<String> paramTypes = new ArrayList<>();
-        if (!peek(")")) {
+        if (!peek(Token.Kind.RIGHT_PAREN)) {
             if (!peek(Token.Type.IDENTIFIER)) {
-                if (tokens.has(0)) throw new ParseException("Expected identifier.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected identifier.", eofIndex());
+                throw error("Expected identifier.");
             }
-            String p = tokens.get(0).getLiteral();
+            String p = tokens.getLiteral(0);
             tokens.advance();
-            if (!match(":")) {
-                if (tokens.has(0)) throw new ParseException("Expected ':'.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected ':'.", eofIndex());
+            if (!match(Token.Kind.COLON)) {
+                throw error("Expected ':'.");
             }
             if (!peek(Token.Type.IDENTIFIER)) {
-                if (tokens.has(0)) throw new ParseException("Expected type name.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected type name.", eofIndex());
+                throw error("Expected type name.");
             }
-            String pt = tokens.get(0).getLiteral();
+            String pt = tokens.getLiteral(0);
             tokens.advance();
             params.add(p);
             paramTypes.add(pt);
 
-            while (match(",")) {
+            while (match(Token.Kind.COMMA)) {
                 if (!peek(Token.Type.IDENTIFIER)) {
-                    if (tokens.has(0)) throw new ParseException("Expected identifier.", tokens.get(0).getIndex());
-                    else throw new ParseException("Expected identifier.", eofIndex());
+                    throw error("Expected identifier.");
                 }
-                String p2 = tokens.get(0).getLiteral();
+                String p2 = tokens.getLiteral(0);
                 tokens.advance();
-                if (!match(":")) {
-                    if (tokens.has(0)) throw new ParseException("Expected ':'.", tokens.get(0).getIndex());
-                    else throw new ParseException("Expected ':'.", eofIndex());
+                if (!match(Token.Kind.COLON)) {
+                    throw error("Expected ':'.");
                 }
                 if (!peek(Token.Type.IDENTIFIER)) {
-                    if (tokens.has(0)) throw new ParseException("Expected type name.", tokens.get(0).getIndex());
-                    else throw new ParseException("Expected type name.", eofIndex());
+                    throw error("Expected type name.");
                 }
-                String pt2 = tokens.get(0).getLiteral();
+                String pt2 = tokens.getLiteral(0);
                 tokens.advance();
                 params.add(p2);
                 paramTypes.add(pt2);
             }
         }
 
-        if (!match(")")) {
-            if (tokens.has(0)) throw new ParseException("Expected ')'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ')'.", eofIndex());
+        if (!match(Token.Kind.RIGHT_PAREN)) {
+            throw error("Expected ')'.");
         }
 
         Optional<String> returnType = Optional.empty();
-        if (match(":")) {
+        if (match(Token.Kind.COLON)) {
             if (!peek(Token.Type.IDENTIFIER)) {
-                if (tokens.has(0)) throw new ParseException("Expected return type.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected return type.", eofIndex());
+                throw error("Expected return type.");
             }
-            returnType = Optional.of(tokens.get(0).getLiteral());
+            returnType = Optional.of(tokens.getLiteral(0));
             tokens.advance();
         }
 
-        if (!match("DO")) {
-            if (tokens.has(0)) throw new ParseException("Expected DO.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected DO.", eofIndex());
+        if (!match(Token.Kind.DO)) {
+            throw error("Expected DO.");
+        }
+
+        TokenStream body = lazy ? tokens.fork() : null;
+        if (body != null) {
+            int end = skipBody();
+            if (end >= 0) {
+                // each attempt parses a fork of its own, so one that fails
+                // leaves nothing behind and the next fails the same way
+                return new Ast.Method(name, params, paramTypes, returnType, () -> new Parser(body.fork()).parseBody(end));
+            }
+            // the scan found no END, so parse eagerly to report the error
+            List<Ast.Statement> statements = new Parser(body).parseBody();
+            tokens.index = body.index;
+            return new Ast.Method(name, params, paramTypes, returnType, statements);
         }
+        return new Ast.Method(name, params, paramTypes, returnType, parseBody());
+    }
+
+    /**
+     * Parses the statements of a method body through its {@code END}.
+     */
+    private List<Ast.Statement> parseBody() throws ParseException {
+        List<Ast.Statement> statements = parseBlock(false);
+        expectEnd();
+        return statements;
+    }
 
+    /**
+     * Parses statements up to (but not including) {@code END}, or also {@code
+     * ELSE} if {@code elseAllowed} is true, or the end of the input.
+     *
+     * When recovering from errors, an error in a statement is recorded and
+     * the tokens are skipped as described in {@link
+     * #parseSourceRecovering(List)}, and the start of a method ({@code DEF}
+     * followed by a name) also ends the block.
+     */
+    private List<Ast.Statement> parseBlock(boolean elseAllowed) throws ParseException {
         List<Ast.Statement> statements = new ArrayList<>();
-        while (!peek("END")) {
-            if (!tokens.has(0)) throw new ParseException("Expected END.", eofIndex());
-            statements.add(parseStatement());
+        while (tokens.has(0) && !peek(Token.Kind.END) && !(elseAllowed && peek(Token.Kind.ELSE))) {
+            if (errors == null) {
+                statements.add(parseStatement());
+                continue;
+            } else if (peek(Token.Kind.DEF, Token.Type.IDENTIFIER)) {
+                // the start of a method, which is never a valid statement
+                break;
+            }
+            int start = tokens.index;
+            try {
+                statements.add(parseStatement());
+            } catch (ParseException e) {
+                errors.add(e);
+                while (tokens.has(0)) {
+                    Token.Kind kind = tokens.getKind(0);
+                    if (tokens.index > start && (kind == Token.Kind.END || kind == Token.Kind.LET || kind == Token.Kind.DEF)) {
+                        break;
+                    }
+                    tokens.advance();
+                    if (kind == Token.Kind.SEMICOLON) {
+                        break;
+                    }
+                }
+            }
         }
-        tokens.advance();
+        return statements;
+    }
+
+    /**
+     * Matches the {@code END} of a block, which is an error unless recovering
+     * from errors, in which case the error is recorded and the block is
+     * treated as ended.
+     */
+    private void expectEnd() throws ParseException {
+        if (!match(Token.Kind.END)) {
+            ParseException exception = error("Expected END.");
+            if (errors == null) {
+                throw exception;
+            }
+            errors.add(exception);
+        }
+    }
+
+    /**
+     * Parses a method body skipped by {@link #skipBody()}, checking that it
+     * ends at the same {@code END} that was found by the scan.
+     */
+    private List<Ast.Statement> parseBody(int end) throws ParseException {
+        List<Ast.Statement> statements = parseBody();
+        if (tokens.index != end + 1) {
+            throw new ParseException("Expected END.", tokens.getIndex(-1));
+        }
+        return statements;
+    }
+
+    /**
+     * Advances past a method, from its {@code DEF} through the {@code END}
+     * found by {@link #skipBody()}, returning {@code false} if either the
+     * {@code DO} or the {@code END} is not found.
+     */
+    private boolean skipMethod() {
+        tokens.advance(); // DEF
+        int parens = 0;
+        while (tokens.has(0) && (parens > 0 || tokens.getKind(0) != Token.Kind.DO)) {
+            if (tokens.getKind(0) == Token.Kind.LEFT_PAREN) {
+                parens++;
+            } else if (tokens.getKind(0) == Token.Kind.RIGHT_PAREN) {
+                parens--;
+            }
+            tokens.advance();
+        }
+        if (!tokens.has(0)) {
+            return false;
+        }
+        tokens.advance(); // DO
+        return skipBody() >= 0;
+    }
 
-        return new Ast.Method(name, params, paramTypes, returnType, statements);
+    /**
+     * Advances past the {@code END} matching the {@code DO} of a method,
+     * returning the position of that {@code END} in the token stream, or
+     * {@code -1} if the end of the input is reached first.
+     *
+     * Keywords are also valid names in expressions (such as {@code x = END;}),
+     * so {@code IF}, {@code FOR}, {@code WHILE}, and {@code END} are only
+     * counted where a statement can start: after {@code DO}, {@code ELSE},
+     * {@code ;}, {@code END}, or the {@code )} of a for statement, and outside
+     * of any parentheses.
+     */
+    private int skipBody() {
+        int depth = 1;
+        int parens = 0;
+        boolean start = true;
+        while (tokens.has(0)) {
+            Token.Kind kind = tokens.getKind(0);
+            if (start) {
+                if (kind == Token.Kind.IF || kind == Token.Kind.FOR || kind == Token.Kind.WHILE) {
+                    depth++;
+                } else if (kind == Token.Kind.END && --depth == 0) {
+                    int end = tokens.index;
+                    tokens.advance();
+                    return end;
+                }
+            }
+            if (kind == Token.Kind.LEFT_PAREN) {
+                parens++;
+            } else if (kind == Token.Kind.RIGHT_PAREN) {
+                parens--;
+            }
+            start = parens == 0 && (kind == Token.Kind.DO || kind == Token.Kind.ELSE
+                    || kind == Token.Kind.SEMICOLON || kind == Token.Kind.END || kind == Token.Kind.RIGHT_PAREN);
+            tokens.advance();
+        }
+        return -1;
     }
 
     /**
@@ -190,33 +672,36 @@ public final class Parser {
      */
     public Ast.Statement parseStatement() throws ParseException {
         // delegate other forms (P2B)
-        if (peek("LET")) return parseDeclarationStatement();
-        if (peek("IF")) return parseIfStatement();
-        if (peek("FOR")) return parseForStatement();
-        if (peek("WHILE")) return parseWhileStatement();
-        if (peek("RETURN")) return parseReturnStatement();
+        if (tokens.has(0)) {
+            switch (tokens.getKind(0)) {
+                case LET: return parseDeclarationStatement();
+                case IF: return parseIfStatement();
+                case FOR: return parseForStatement();
+                case WHILE: return parseWhileStatement();
+                case RETURN: return parseReturnStatement();
+                default: break;
+            }
+        }
 
         // Part 2A: either "expr ;" or "expr = expr ;"
         Ast.Expression lhs = parseExpression();
-        if (match("=")) {
+        if (match(Token.Kind.ASSIGN)) {
             // need value
             if (!tokens.has(0)) {
-                throw new ParseException("Expected expression.", eofIndex());
+                throw error("Expected expression.");
             }
-            if (peek(";")) {
-                throw new ParseException("Expected expression.", tokens.get(0).getIndex());
+            if (peek(Token.Kind.SEMICOLON)) {
+                throw error("Expected expression.");
             }
             Ast.Expression rhs = parseExpression();
             // require ';'
-            if (!match(";")) {
-                if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected ';'.", eofIndex());
+            if (!match(Token.Kind.SEMICOLON)) {
+                throw error("Expected ';'.");
             }
             return new Ast.Statement.Assignment(lhs, rhs);
         } else {
-            if (!match(";")) {
-                if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected ';'.", eofIndex());
+            if (!match(Token.Kind.SEMICOLON)) {
+                throw error("Expected ';'.");
             }
             return new Ast.Statement.Expression(lhs);
         }
@@ -228,36 +713,32 @@ public final class Parser {
      * statement, aka {@code LET}.
      */
     public Ast.Statement.Declaration parseDeclarationStatement() throws ParseException {
-        if (!match("LET")) {
-            if (tokens.has(0)) throw new ParseException("Expected LET.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected LET.", eofIndex());
+        if (!match(Token.Kind.LET)) {
+            throw error("Expected LET.");
         }
         if (!peek(Token.Type.IDENTIFIER)) {
-            if (tokens.has(0)) throw new ParseException("Expected identifier.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected identifier.", eofIndex());
+            throw error("Expected identifier.");
         }
-        String name = tokens.get(0).getLiteral();
+        String name = tokens.getLiteral(0);
         tokens.advance();
 
         Optional<String> typeName = Optional.empty();
-        if (match(":")) {
+        if (match(Token.Kind.COLON)) {
             if (!peek(Token.Type.IDENTIFIER)) {
-                if (tokens.has(0)) throw new ParseException("Expected type name.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected type name.", eofIndex());
+                throw error("Expected type name.");
             }
-            typeName = Optional.of(tokens.get(0).getLiteral());
+            typeName = Optional.of(tokens.getLiteral(0));
             tokens.advance();
         }
 
         Optional<Ast.Expression> value = Optional.empty();
-        if (match("=")) {
-            if (!tokens.has(0)) throw new ParseException("Expected expression.", eofIndex());
+        if (match(Token.Kind.ASSIGN)) {
+            if (!tokens.has(0)) throw error("Expected expression.");
             value = Optional.of(parseExpression());
         }
 
-        if (!match(";")) {
-            if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ';'.", eofIndex());
+        if (!match(Token.Kind.SEMICOLON)) {
+            throw error("Expected ';'.");
         }
         return new Ast.Statement.Declaration(name, typeName, value);
     }
@@ -269,35 +750,21 @@ public final class Parser {
      */
     public Ast.Statement.If parseIfStatement() throws ParseException {
         // IF expr DO stmts (ELSE stmts)? END
-        if (!match("IF")) {
-            if (tokens.has(0)) throw new ParseException("Expected IF.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected IF.", eofIndex());
+        if (!match(Token.Kind.IF)) {
+            throw error("Expected IF.");
         }
         Ast.Expression condition = parseExpression();
 
-        if (!match("DO")) {
-            if (tokens.has(0)) throw new ParseException("Expected DO.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected DO.", eofIndex());
-        }
-
-        List<Ast.Statement> thenStmts = new ArrayList<>();
-        while (!peek("ELSE") && !peek("END")) {
-            if (!tokens.has(0)) throw new ParseException("Expected END.", eofIndex());
-            thenStmts.add(parseStatement());
+        if (!match(Token.Kind.DO)) {
+            throw error("Expected DO.");
         }
 
+        List<Ast.Statement> thenStmts = parseBlock(true);
         List<Ast.Statement> elseStmts = new ArrayList<>();
-        if (match("ELSE")) {
-            while (!peek("END")) {
-                if (!tokens.has(0)) throw new ParseException("Expected END.", eofIndex());
-                elseStmts.add(parseStatement());
-            }
-        }
-
-        if (!match("END")) {
-            if (tokens.has(0)) throw new ParseException("Expected END.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected END.", eofIndex());
+        if (match(Token.Kind.ELSE)) {
+            elseStmts = parseBlock(false);
         }
+        expectEnd();
 
         return new Ast.Statement.If(condition, thenStmts, elseStmts);
     }
@@ -309,66 +776,51 @@ public final class Parser {
      */
     public Ast.Statement.For parseForStatement() throws ParseException {
         // FOR '(' (id = expr)? ';' expr ';' (id = expr)? ')' stmts END
-        if (!match("FOR")) {
-            if (tokens.has(0)) throw new ParseException("Expected FOR.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected FOR.", eofIndex());
+        if (!match(Token.Kind.FOR)) {
+            throw error("Expected FOR.");
         }
-        if (!match("(")) {
-            if (tokens.has(0)) throw new ParseException("Expected '('.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected '('.", eofIndex());
+        if (!match(Token.Kind.LEFT_PAREN)) {
+            throw error("Expected '('.");
         }
 
         Ast.Statement init = null;
         if (peek(Token.Type.IDENTIFIER)) {
-            String n = tokens.get(0).getLiteral();
+            String n = tokens.getLiteral(0);
             tokens.advance();
-            if (!match("=")) {
-                if (tokens.has(0)) throw new ParseException("Expected '='.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected '='.", eofIndex());
+            if (!match(Token.Kind.ASSIGN)) {
+                throw error("Expected '='.");
             }
             Ast.Expression v = parseExpression();
             init = new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), n), v);
         }
 
-        if (!match(";")) {
-            if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ';'.", eofIndex());
+        if (!match(Token.Kind.SEMICOLON)) {
+            throw error("Expected ';'.");
         }
 
         Ast.Expression condition = parseExpression();
 
-        if (!match(";")) {
-            if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ';'.", eofIndex());
+        if (!match(Token.Kind.SEMICOLON)) {
+            throw error("Expected ';'.");
         }
 
         Ast.Statement incr = null;
         if (peek(Token.Type.IDENTIFIER)) {
-            String n2 = tokens.get(0).getLiteral();
+            String n2 = tokens.getLiteral(0);
             tokens.advance();
-            if (!match("=")) {
-                if (tokens.has(0)) throw new ParseException("Expected '='.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected '='.", eofIndex());
+            if (!match(Token.Kind.ASSIGN)) {
+                throw error("Expected '='.");
             }
             Ast.Expression v2 = parseExpression();
             incr = new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), n2), v2);
         }
 
-        if (!match(")")) {
-            if (tokens.has(0)) throw new ParseException("Expected ')'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ')'.", eofIndex());
+        if (!match(Token.Kind.RIGHT_PAREN)) {
+            throw error("Expected ')'.");
         }
 
-        List<Ast.Statement> body = new ArrayList<>();
-        while (!peek("END")) {
-            if (!tokens.has(0)) throw new ParseException("Expected END.", eofIndex());
-            body.add(parseStatement());
-        }
-
-        if (!match("END")) {
-            if (tokens.has(0)) throw new ParseException("Expected END.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected END.", eofIndex());
-        }
+        List<Ast.Statement> body = parseBlock(false);
+        expectEnd();
 
         return new Ast.Statement.For(init, condition, incr, body);
     }
@@ -380,27 +832,17 @@ public final class Parser {
      */
     public Ast.Statement.While parseWhileStatement() throws ParseException {
         // WHILE expr DO stmts END
-        if (!match("WHILE")) {
-            if (tokens.has(0)) throw new ParseException("Expected WHILE.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected WHILE.", eofIndex());
+        if (!match(Token.Kind.WHILE)) {
+            throw error("Expected WHILE.");
         }
         Ast.Expression cond = parseExpression();
 
-        if (!match("DO")) {
-            if (tokens.has(0)) throw new ParseException("Expected DO.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected DO.", eofIndex());
+        if (!match(Token.Kind.DO)) {
+            throw error("Expected DO.");
         }
 
-        List<Ast.Statement> body = new ArrayList<>();
-        while (!peek("END")) {
-            if (!tokens.has(0)) throw new ParseException("Expected END.", eofIndex());
-            body.add(parseStatement());
-        }
-
-        if (!match("END")) {
-            if (tokens.has(0)) throw new ParseException("Expected END.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected END.", eofIndex());
-        }
+        List<Ast.Statement> body = parseBlock(false);
+        expectEnd();
 
         return new Ast.Statement.While(cond, body);
     }
@@ -412,16 +854,14 @@ public final class Parser {
      */
     public Ast.Statement.Return parseReturnStatement() throws ParseException {
         // RETURN expr ;
-        if (!match("RETURN")) {
-            if (tokens.has(0)) throw new ParseException("Expected RETURN.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected RETURN.", eofIndex());
+        if (!match(Token.Kind.RETURN)) {
+            throw error("Expected RETURN.");
         }
-        if (!tokens.has(0)) throw new ParseException("Expected expression.", eofIndex());
+        if (!tokens.has(0)) throw error("Expected expression.");
         Ast.Expression value = parseExpression();
 
-        if (!match(";")) {
-            if (tokens.has(0)) throw new ParseException("Expected ';'.", tokens.get(0).getIndex());
-            else throw new ParseException("Expected ';'.", eofIndex());
+        if (!match(Token.Kind.SEMICOLON)) {
+            throw error("Expected ';'.");
         }
         return new Ast.Statement.Return(value);
     }
@@ -430,167 +870,192 @@ public final class Parser {
      * Parses the {@code expression} rule.
      */
     public Ast.Expression parseExpression() throws ParseException {
-        return parseLogicalExpression();
+        return parseExpression(LOGICAL);
     }
 
     /**
      * Parses the {@code logical-expression} rule.
      */
     public Ast.Expression parseLogicalExpression() throws ParseException {
-        // logical_expression ::= comparison_expression (('AND' | 'OR') comparison_expression)*
-        Ast.Expression expr = parseEqualityExpression();
-        while (true) {
-            String op = null;
-            if (peek("AND") || peek("&&")) {
-                op = peek("AND") ? "AND" : "&&";
-            } else if (peek("OR") || peek("||")) {
-                op = peek("OR") ? "OR" : "||";
-            }
-            if (op == null) break;
-            tokens.advance(); // consume operator
-
-            // need right-hand side of expression after operator
-            if (!tokens.has(0)) {
-                throw new ParseException("Expected expression.", eofIndex());
-            }
-
-            Ast.Expression right = parseEqualityExpression();
-            expr = new Ast.Expression.Binary(op, expr, right);
-        }
-        return expr;
+        return parseExpression(LOGICAL);
     }
 
     /**
      * Parses the {@code equality-expression} rule.
      */
     public Ast.Expression parseEqualityExpression() throws ParseException {
-        // additive_expression (('<' | '<=' | '>' | '>=' | '==' | '!=') additive_expression)*
-        Ast.Expression expr = parseAdditiveExpression();
-        while (true) {
-            String op = null;
-            if (peek("<=")) op = "<=";
-            else if (peek(">=")) op = ">=";
-            else if (peek("==")) op = "==";
-            else if (peek("!=")) op = "!=";
-            else if (peek("<")) op = "<";
-            else if (peek(">")) op = ">";
-            if (op == null) break;
-            tokens.advance();
-            Ast.Expression right = parseAdditiveExpression();
-            expr = new Ast.Expression.Binary(op, expr, right);
-        }
-        return expr;
+        return parseExpression(EQUALITY);
     }
 
     /**
      * Parses the {@code additive-expression} rule.
      */
     public Ast.Expression parseAdditiveExpression() throws ParseException {
-        Ast.Expression expr = parseMultiplicativeExpression();
-        while (peek("+") || peek("-")) {
-            String op = tokens.get(0).getLiteral();
-            tokens.advance();
-            Ast.Expression right = parseMultiplicativeExpression();
-            expr = new Ast.Expression.Binary(op, expr, right);
-        }
-        return expr;
+        return parseExpression(ADDITIVE);
     }
 
     /**
      * Parses the {@code multiplicative-expression} rule.
      */
     public Ast.Expression parseMultiplicativeExpression() throws ParseException {
-        Ast.Expression expr = parseSecondaryExpression();
-        while (peek("*") || peek("/")) {
-            String op = tokens.get(0).getLiteral();
-            tokens.advance();
-            Ast.Expression right = parseSecondaryExpression();
-            expr = new Ast.Expression.Binary(op, expr, right);
-        }
-        return expr;
+        return parseExpression(MULTIPLICATIVE);
     }
 
     /**
      * Parses the {@code secondary-expression} rule.
      */
     public Ast.Expression parseSecondaryExpression() throws ParseException {
-        Ast.Expression expr = parsePrimaryExpression();
-        while (peek(".")) {
-            tokens.advance(); // '.'
-            if (!peek(Token.Type.IDENTIFIER)) {
+        return parseExpression(SECONDARY);
+    }
+
+    /**
+     * Parses the {@code primary-expression} rule. This is the top-level rule
+     * for expressions and includes literal values, grouping, variables, and
+     * functions.
+     */
+    public Ast.Expression parsePrimaryExpression() throws ParseException {
+        return parseExpression(PRIMARY);
+    }
+
+    /**
+     * Parses an expression whose binary operators all have at least the given
+     * precedence, which handles each of the expression rules with one loop
+     * driven by {@link #PRECEDENCE}.
+     *
+     * Rather than recursing for nested expressions, this keeps an explicit
+     * stack of {@link ExpressionFrame}s on the heap: one for each group or
+     * argument list that is still open. Within a frame, binary operators are
+     * reduced by precedence (operators of the same precedence are left
+     * associative) to build the same trees as the grammar rules. Expressions
+     * can therefore be nested or chained as deeply as memory allows, not just
+     * as deeply as the Java stack allows.
+     */
+    private Ast.Expression parseExpression(int minimum) throws ParseException {
+        Deque<ExpressionFrame> frames = new ArrayDeque<>();
+        ExpressionFrame frame = new ExpressionFrame(minimum, null, null);
+        Ast.Expression operand = null;
+        while (true) {
+            if (operand == null) {
                 if (!tokens.has(0)) {
-                    throw new ParseException("Expected identifier.", eofIndex());
-                } else {
-                    throw new ParseException("Expected identifier.", tokens.get(0).getIndex());
+                    throw error("Expected expression.");
                 }
-            }
-            String name = tokens.get(0).getLiteral();
-            tokens.advance();
-            if (peek("(")) {
-                tokens.advance();
-                List<Ast.Expression> args = new ArrayList<>();
-                if (peek(")")) {
-                    tokens.advance(); // zero args
-                } else {
-                    args.add(parseExpression());
-                    while (peek(",")) {
+                operand = parseLiteral();
+                if (operand == null) {
+                    if (match(Token.Kind.LEFT_PAREN)) {
+                        // '(' expression ')'
+                        frames.push(frame);
+                        frame = new ExpressionFrame(LOGICAL, null, null);
+                        continue;
+                    } else if (peek(Token.Type.IDENTIFIER)) {
+                        // identifier or function call
+                        String name = tokens.getLiteral(0);
                         tokens.advance();
-                        if (peek(")")) {
-                            // catch case of trailing comma i.e. name(expr,)
-                            throw new ParseException("Expected expression.", tokens.get(0).getIndex());
+                        if (!match(Token.Kind.LEFT_PAREN)) {
+                            operand = new Ast.Expression.Access(Optional.empty(), name);
+                        } else if (match(Token.Kind.RIGHT_PAREN)) {
+                            operand = new Ast.Expression.Function(Optional.empty(), name, new ArrayList<>());
+                        } else {
+                            frames.push(frame);
+                            frame = new ExpressionFrame(LOGICAL, Optional.empty(), name);
+                            continue;
                         }
-                        args.add(parseExpression());
+                    } else {
+                        throw error("Expected expression.");
                     }
-                    if (!peek(")")) {
-                        if (tokens.has(0)) throw new ParseException("Expected ')'.", tokens.get(0).getIndex());
-                        else throw new ParseException("Expected ')'.", eofIndex());
-                    }
-                    tokens.advance();
                 }
-                expr = new Ast.Expression.Function(Optional.of(expr), name, args);
+            }
+
+            // ('.' identifier ('(' (expression (',' expression)*)? ')')?)*
+            boolean opened = false;
+            while (frame.minimum <= SECONDARY && match(Token.Kind.DOT)) {
+                if (!peek(Token.Type.IDENTIFIER)) {
+                    throw error("Expected identifier.");
+                }
+                String name = tokens.getLiteral(0);
+                tokens.advance();
+                if (!match(Token.Kind.LEFT_PAREN)) {
+                    operand = new Ast.Expression.Access(Optional.of(operand), name);
+                } else if (match(Token.Kind.RIGHT_PAREN)) {
+                    operand = new Ast.Expression.Function(Optional.of(operand), name, new ArrayList<>());
+                } else {
+                    frames.push(frame);
+                    frame = new ExpressionFrame(LOGICAL, Optional.of(operand), name);
+                    opened = true;
+                    break;
+                }
+            }
+            if (opened) {
+                operand = null;
+                continue;
+            }
+
+            // a binary operator continues the expression of this frame
+            if (tokens.has(0) && PRECEDENCE[tokens.getKind(0).ordinal()] >= frame.minimum) {
+                frame.shift(operand, tokens.getKind(0));
+                tokens.advance();
+                operand = null;
+                continue;
+            }
+
+            // otherwise, this frame's expression is complete
+            Ast.Expression expr = frame.reduce(operand, 0);
+            if (frame.arguments == null && frame.name == null) {
+                if (frames.isEmpty()) {
+                    return expr;
+                }
+                if (!match(Token.Kind.RIGHT_PAREN)) {
+                    throw error("Expected ')'.");
+                }
+                operand = new Ast.Expression.Group(expr);
             } else {
-                expr = new Ast.Expression.Access(Optional.of(expr), name);
+                frame.arguments.add(expr);
+                if (match(Token.Kind.COMMA)) {
+                    if (peek(Token.Kind.RIGHT_PAREN)) {
+                        // catch case of trailing comma i.e. name(expr,)
+                        throw error("Expected expression.");
+                    }
+                    operand = null;
+                    continue;
+                }
+                if (!match(Token.Kind.RIGHT_PAREN)) {
+                    throw error("Expected ')'.");
+                }
+                operand = new Ast.Expression.Function(frame.receiver, frame.name, frame.arguments);
             }
+            frame = frames.pop();
         }
-        return expr;
     }
 
     /**
-     * Parses the {@code primary-expression} rule. This is the top-level rule
-     * for expressions and includes literal values, grouping, variables, and
-     * functions. It may be helpful to break these up into other methods but is
-     * not strictly necessary.
+     * Parses a literal value (including the NIL, TRUE, and FALSE keywords), or
+     * returns {@code null} if the next token is not a literal.
      */
-    public Ast.Expression parsePrimaryExpression() throws ParseException {
-        if (!tokens.has(0)) {
-            throw new ParseException("Expected expression.", eofIndex());
-        }
-
+    private Ast.Expression.Literal parseLiteral() {
         // special case: NIL/TRUE/FALSE keywords (come in as identifiers)
-        if (peek(Token.Type.IDENTIFIER)) {
-            String w = tokens.get(0).getLiteral();
-            if ("NIL".equals(w)) { tokens.advance(); return new Ast.Expression.Literal(null); }
-            if ("TRUE".equals(w)) { tokens.advance(); return new Ast.Expression.Literal(Boolean.TRUE); }
-            if ("FALSE".equals(w)) { tokens.advance(); return new Ast.Expression.Literal(Boolean.FALSE); }
+        switch (tokens.getKind(0)) {
+            case NIL: tokens.advance(); return new Ast.Expression.Literal(null);
+            case TRUE: tokens.advance(); return new Ast.Expression.Literal(Boolean.TRUE);
+            case FALSE: tokens.advance(); return new Ast.Expression.Literal(Boolean.FALSE);
+            default: break;
         }
 
         // integer
         if (peek(Token.Type.INTEGER)) {
-            String s = tokens.get(0).getLiteral();
+            String s = tokens.getLiteral(0);
             tokens.advance();
             if (s.startsWith("+")) s = s.substring(1);
             return new Ast.Expression.Literal(new BigInteger(s));
         }
         // decimal
         if (peek(Token.Type.DECIMAL)) {
-            String s = tokens.get(0).getLiteral();
+            String s = tokens.getLiteral(0);
             tokens.advance();
             if (s.startsWith("+")) s = s.substring(1);
             return new Ast.Expression.Literal(new BigDecimal(s));
         }
         // character
         if (peek(Token.Type.CHARACTER)) {
-            String raw = tokens.get(0).getLiteral(); // e.g. "'c'" or "'\\n'"
+            String raw = tokens.getLiteral(0); // e.g. "'c'" or "'\\n'"
             tokens.advance();
             String inside = raw.substring(1, raw.length() - 1);
             String un = unescapeBasic(inside); // simple, not fancy
@@ -599,55 +1064,256 @@ public final class Parser {
         }
         // string
         if (peek(Token.Type.STRING)) {
-            String raw = tokens.get(0).getLiteral(); // "\"Hello\\n\""
+            String raw = tokens.getLiteral(0); // "\"Hello\\n\""
             tokens.advance();
             String inside = raw.substring(1, raw.length() - 1);
             return new Ast.Expression.Literal(unescapeBasic(inside));
         }
+        return null;
+    }
 
-        // '(' expression ')'
-        if (peek("(")) {
-            tokens.advance();
-            Ast.Expression e = parseExpression();
-            if (!peek(")")) {
-                if (tokens.has(0)) throw new ParseException("Expected ')'.", tokens.get(0).getIndex());
-                else throw new ParseException("Expected ')'.", eofIndex());
+    /**
+     * Checks that the tokens match the {@code source} rule without building an
+     * AST, returning the index of the first syntax error (the same index that
+     * {@link #parseSource()} would throw a {@link ParseException} with), or
+     * {@code -1} if the source is valid.
+     *
+     * The recognize methods below follow the grammar exactly as the parse
+     * methods do, but only advance the token stream and never read literals,
+     * so no nodes, lists, or strings are allocated (and with a {@link
+     * TokenBuffer}, no tokens either). Rather than throwing, they record the
+     * index of an error in {@link #recognizerError} and return {@code false}.
+     */
+    public int validateSource() {
+        recognizerError = -1;
+        try {
+            recognizeSource();
+        } catch (ParseException e) {
+            // lexing errors from a lexer token stream
+            return e.getIndex();
+        }
+        return recognizerError;
+    }
+
+    private boolean recognizeSource() {
+        while (peek(Token.Kind.LET)) {
+            if (!recognizeField()) return false;
+        }
+        while (peek(Token.Kind.DEF)) {
+            if (!recognizeMethod()) return false;
+        }
+        return !tokens.has(0) || fail();
+    }
+
+    private boolean recognizeField() {
+        tokens.advance(); // LET
+        match(Token.Kind.CONST);
+        if (!expect(Token.Type.IDENTIFIER) || !expect(Token.Kind.COLON) || !expect(Token.Type.IDENTIFIER)) {
+            return false;
+        }
+        if (match(Token.Kind.ASSIGN) && !recognizeExpression()) {
+            return false;
+        }
+        return expect(Token.Kind.SEMICOLON);
+    }
+
+    private boolean recognizeMethod() {
+        tokens.advance(); // DEF
+        if (!expect(Token.Type.IDENTIFIER) || !expect(Token.Kind.LEFT_PAREN)) {
+            return false;
+        }
+        if (!peek(Token.Kind.RIGHT_PAREN)) {
+            do {
+                if (!expect(Token.Type.IDENTIFIER) || !expect(Token.Kind.COLON) || !expect(Token.Type.IDENTIFIER)) {
+                    return false;
+                }
+            } while (match(Token.Kind.COMMA));
+        }
+        if (!expect(Token.Kind.RIGHT_PAREN)) {
+            return false;
+        }
+        if (match(Token.Kind.COLON) && !expect(Token.Type.IDENTIFIER)) {
+            return false;
+        }
+        return expect(Token.Kind.DO) && recognizeBlock(false) && expect(Token.Kind.END);
+    }
+
+    /**
+     * Recognizes statements up to (but not including) {@code END}, or also
+     * {@code ELSE} if {@code elseAllowed} is true.
+     */
+    private boolean recognizeBlock(boolean elseAllowed) {
+        while (!peek(Token.Kind.END) && !(elseAllowed && peek(Token.Kind.ELSE))) {
+            if (!tokens.has(0) || !recognizeStatement()) {
+                return fail();
             }
-            tokens.advance();
-            return new Ast.Expression.Group(e);
         }
+        return true;
+    }
 
-        // identifier or function call
-        if (peek(Token.Type.IDENTIFIER)) {
-            String name = tokens.get(0).getLiteral();
-            tokens.advance();
-            if (peek("(")) {
+    private boolean recognizeStatement() {
+        switch (tokens.getKind(0)) {
+            case LET:
+                tokens.advance();
+                if (!expect(Token.Type.IDENTIFIER)) return false;
+                if (match(Token.Kind.COLON) && !expect(Token.Type.IDENTIFIER)) return false;
+                if (match(Token.Kind.ASSIGN) && !recognizeExpression()) return false;
+                return expect(Token.Kind.SEMICOLON);
+            case IF:
+                tokens.advance();
+                if (!recognizeExpression() || !expect(Token.Kind.DO) || !recognizeBlock(true)) return false;
+                if (match(Token.Kind.ELSE) && !recognizeBlock(false)) return false;
+                return expect(Token.Kind.END);
+            case FOR:
                 tokens.advance();
-                List<Ast.Expression> args = new ArrayList<>();
-                if (peek(")")) {
+                if (!expect(Token.Kind.LEFT_PAREN) || !recognizeForAssignment()) return false;
+                if (!expect(Token.Kind.SEMICOLON) || !recognizeExpression() || !expect(Token.Kind.SEMICOLON)) return false;
+                if (!recognizeForAssignment() || !expect(Token.Kind.RIGHT_PAREN)) return false;
+                return recognizeBlock(false) && expect(Token.Kind.END);
+            case WHILE:
+                tokens.advance();
+                return recognizeExpression() && expect(Token.Kind.DO) && recognizeBlock(false) && expect(Token.Kind.END);
+            case RETURN:
+                tokens.advance();
+                return recognizeExpression() && expect(Token.Kind.SEMICOLON);
+            default:
+                if (!recognizeExpression()) return false;
+                if (match(Token.Kind.ASSIGN)) {
+                    if (peek(Token.Kind.SEMICOLON)) return fail();
+                    if (!recognizeExpression()) return false;
+                }
+                return expect(Token.Kind.SEMICOLON);
+        }
+    }
+
+    /**
+     * Recognizes the optional {@code identifier '=' expression} of a for
+     * statement's initialization or increment.
+     */
+    private boolean recognizeForAssignment() {
+        if (!match(Token.Type.IDENTIFIER)) {
+            return true;
+        }
+        return expect(Token.Kind.ASSIGN) && recognizeExpression();
+    }
+
+    /**
+     * Recognizes the {@code expression} rule with the same loop structure as
+     * {@link #parseExpression(int)}. Operator precedence does not affect
+     * whether an expression is valid, so only the open groups and argument
+     * lists are kept, as a stack of flags (true for argument lists) that is
+     * reused across expressions.
+     */
+    private boolean recognizeExpression() {
+        int depth = 0;
+        boolean operand = false;
+        while (true) {
+            if (!operand) {
+                if (!tokens.has(0)) {
+                    return fail();
+                }
+                if (isLiteral()) {
                     tokens.advance();
-                } else {
-                    args.add(parseExpression());
-                    while (peek(",")) {
-                        tokens.advance();
-                        if (peek(")")) {
-                            throw new ParseException("Expected expression.", tokens.get(0).getIndex());
-                        }
-                        args.add(parseExpression());
+                } else if (match(Token.Kind.LEFT_PAREN)) {
+                    depth = open(depth, false);
+                    continue;
+                } else if (match(Token.Type.IDENTIFIER)) {
+                    if (match(Token.Kind.LEFT_PAREN) && !match(Token.Kind.RIGHT_PAREN)) {
+                        depth = open(depth, true);
+                        continue;
                     }
-                    if (!peek(")")) {
-                        if (tokens.has(0)) throw new ParseException("Expected ')'.", tokens.get(0).getIndex());
-                        else throw new ParseException("Expected ')'.", eofIndex());
-                    }
-                    tokens.advance();
+                } else {
+                    return fail();
+                }
+            }
+
+            // ('.' identifier ('(' (expression (',' expression)*)? ')')?)*
+            operand = false;
+            boolean opened = false;
+            while (match(Token.Kind.DOT)) {
+                if (!expect(Token.Type.IDENTIFIER)) {
+                    return false;
+                }
+                if (match(Token.Kind.LEFT_PAREN) && !match(Token.Kind.RIGHT_PAREN)) {
+                    depth = open(depth, true);
+                    opened = true;
+                    break;
+                }
+            }
+            if (opened) {
+                continue;
+            }
+
+            // a binary operator continues the expression
+            if (tokens.has(0) && PRECEDENCE[tokens.getKind(0).ordinal()] > 0) {
+                tokens.advance();
+                continue;
+            }
+
+            // otherwise, the innermost group or argument is complete
+            if (depth == 0) {
+                return true;
+            }
+            if (recognizerGroups[depth - 1] && match(Token.Kind.COMMA)) {
+                if (peek(Token.Kind.RIGHT_PAREN)) {
+                    return fail();
                 }
-                return new Ast.Expression.Function(Optional.empty(), name, args);
+                continue;
             }
-            return new Ast.Expression.Access(Optional.empty(), name);
+            if (!expect(Token.Kind.RIGHT_PAREN)) {
+                return false;
+            }
+            depth--;
+            operand = true;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the next token is a literal value, as parsed by
+     * {@link #parseLiteral()}.
+     */
+    private boolean isLiteral() {
+        switch (tokens.getType(0)) {
+            case INTEGER: case DECIMAL: case CHARACTER: case STRING: return true;
+            default: break;
+        }
+        Token.Kind kind = tokens.getKind(0);
+        return kind == Token.Kind.NIL || kind == Token.Kind.TRUE || kind == Token.Kind.FALSE;
+    }
+
+    /**
+     * Pushes a group (or argument list, if {@code call} is true) onto the
+     * stack of {@link #recognizeExpression()}, returning the new depth.
+     */
+    private int open(int depth, boolean call) {
+        if (depth == recognizerGroups.length) {
+            recognizerGroups = Arrays.copyOf(recognizerGroups, depth * 2);
         }
+        recognizerGroups[depth] = call;
+        return depth + 1;
+    }
+
+    /**
+     * As in {@link #match(Token.Kind)}, but records an error with {@link
+     * #fail()} if the next token does not match.
+     */
+    private boolean expect(Token.Kind kind) {
+        return match(kind) || fail();
+    }
+
+    private boolean expect(Token.Type type) {
+        return match(type) || fail();
+    }
 
-        // invalid start
-        throw new ParseException("Expected expression.", tokens.get(0).getIndex());
+    /**
+     * Records the index of the current token (or the end of input) as the
+     * error of {@link #validateSource()}, and returns {@code false}.
+     */
+    private boolean fail() {
+        if (recognizerError < 0) {
+            recognizerError = tokens.has(0) ? tokens.getIndex(0) : eofIndex();
+        }
+        return false;
     }
 
     /**
@@ -658,17 +1324,19 @@ public final class Parser {
      * literal is the same.
      *
      * In other words, {@code Token(IDENTIFIER, "literal")} is matched by both
-     * {@code peek(Token.Type.IDENTIFIER)} and {@code peek("literal")}.
+     * {@code peek(Token.Type.IDENTIFIER)} and {@code peek("literal")}. A
+     * {@link Token.Kind} pattern matches if the token's kind is the same.
      */
     private boolean peek(Object... patterns) {
         for (int i = 0; i < patterns.length; i++) {
             if (!tokens.has(i)) return false;
             Object p = patterns[i];
-            Token t = tokens.get(i);
             if (p instanceof Token.Type) {
-                if (t.getType() != p) return false;
+                if (tokens.getType(i) != p) return false;
+            } else if (p instanceof Token.Kind) {
+                if (tokens.getKind(i) != p) return false;
             } else if (p instanceof String) {
-                if (!t.getLiteral().equals(p)) return false;
+                if (!tokens.literalEquals(i, (String) p)) return false;
             } else {
                 return false;
             }
@@ -676,6 +1344,45 @@ public final class Parser {
         return true;
     }
 
+    /**
+     * Returns {@code true} if the next token is of the given kind. This is the
+     * common case of {@link #peek(Object...)} for keywords and operators, and
+     * compares the precomputed kind rather than the token's literal.
+     */
+    private boolean peek(Token.Kind kind) {
+        return tokens.has(0) && tokens.getKind(0) == kind;
+    }
+
+    /**
+     * Returns {@code true} if the next token is of the given type, as in
+     * {@link #peek(Token.Kind)}.
+     */
+    private boolean peek(Token.Type type) {
+        return tokens.has(0) && tokens.getType(0) == type;
+    }
+
+    /**
+     * As in {@link #peek(Token.Kind)}, but also advances the token stream.
+     */
+    private boolean match(Token.Kind kind) {
+        if (peek(kind)) {
+            tokens.advance();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * As in {@link #peek(Token.Type)}, but also advances the token stream.
+     */
+    private boolean match(Token.Type type) {
+        if (peek(type)) {
+            tokens.advance();
+            return true;
+        }
+        return false;
+    }
+
     /**
      * As in the lexer, returns {@code true} if {@link #peek(Object...)} is true
      * and advances the token stream.
@@ -692,11 +1399,20 @@ public final class Parser {
         return false;
     }
 
+    /**
+     * Creates a {@link ParseException} at the next token, or at the end of the
+     * input if there are no more tokens. The exception has no stack trace when
+     * recovering from errors.
+     */
+    private ParseException error(String message) {
+        int index = tokens.has(0) ? tokens.getIndex(0) : eofIndex();
+        return new ParseException(message, index, errors == null);
+    }
+
     // EOF index computation, just doing it here instead of in TokenStream
     private int eofIndex() {
         if (tokens.index == 0) return 0;
-        Token last = tokens.tokens.get(tokens.index - 1);
-        return last.getIndex() + last.getLiteral().length();
+        return tokens.getIndex(-1) + tokens.getLength(-1);
     }
 
     // basic unescape for strings/chars, just the ones listed in the spec
@@ -723,27 +1439,83 @@ public final class Parser {
         return b.toString();
     }
 
-    private static final class TokenStream {
+    /**
+     * An expression being parsed by {@link #parseExpression(int)}, which is
+     * either the top-level expression, the contents of a group, or the current
+     * argument of a function call (in which case {@link #name} is set).
+     */
+    private static final class ExpressionFrame {
 
-        private final List<Token> tokens;
-        private int index = 0;
+        private final int minimum;
+        private final Optional<Ast.Expression> receiver;
+        private final String name;
+        private final List<Ast.Expression> arguments;
+        private final List<Ast.Expression> operands = new ArrayList<>();
+        private final List<Token.Kind> operators = new ArrayList<>();
 
-        private TokenStream(List<Token> tokens) {
-            this.tokens = tokens;
+        private ExpressionFrame(int minimum, Optional<Ast.Expression> receiver, String name) {
+            this.minimum = minimum;
+            this.receiver = receiver;
+            this.name = name;
+            this.arguments = name != null ? new ArrayList<>() : null;
         }
 
         /**
-         * Returns true if there is a token at index + offset.
+         * Adds an operand followed by a binary operator, first reducing any
+         * pending operators of the same or higher precedence.
          */
-        public boolean has(int offset) {
-            return index + offset < tokens.size();
+        private void shift(Ast.Expression operand, Token.Kind operator) {
+            operands.add(reduce(operand, PRECEDENCE[operator.ordinal()]));
+            operators.add(operator);
+        }
+
+        /**
+         * Combines the last operand with pending operators of at least the
+         * given precedence, returning the resulting expression. Reducing with a
+         * precedence of zero completes the frame's expression and leaves the
+         * frame ready to parse another argument.
+         */
+        private Ast.Expression reduce(Ast.Expression operand, int precedence) {
+            while (!operators.isEmpty() && PRECEDENCE[operators.get(operators.size() - 1).ordinal()] >= precedence) {
+                Token.Kind operator = operators.remove(operators.size() - 1);
+                Ast.Expression left = operands.remove(operands.size() - 1);
+                operand = new Ast.Expression.Binary(operator.getLiteral(), left, operand);
+            }
+            return operand;
         }
 
+    }
+
+    /**
+     * The token stream used by the parser, which reads the type, literal, and
+     * index of tokens relative to the current position. Implementations exist
+     * for a list of tokens and for a {@link TokenBuffer}.
+     */
+    private static abstract class TokenStream {
+
+        protected int index = 0;
+
+        /**
+         * Returns true if there is a token at index + offset.
+         */
+        public abstract boolean has(int offset);
+
+        public abstract Token.Type getType(int offset);
+
+        public abstract Token.Kind getKind(int offset);
+
+        public abstract String getLiteral(int offset);
+
+        public abstract int getIndex(int offset);
+
+        public abstract int getLength(int offset);
+
         /**
-         * Gets the token at index + offset.
+         * Returns true if the literal of the token at index + offset is equal
+         * to the given string.
          */
-        public Token get(int offset) {
-            return tokens.get(index + offset);
+        public boolean literalEquals(int offset, String literal) {
+            return getLiteral(offset).equals(literal);
         }
 
         /**
@@ -753,6 +1525,181 @@ public final class Parser {
             index++;
         }
 
+        /**
+         * Returns a new stream over the same tokens starting at the current
+         * index, or {@code null} if the tokens cannot be read again.
+         */
+        public TokenStream fork() {
+            return null;
+        }
+
+    }
+
+    private static final class ListTokenStream extends TokenStream {
+
+        private final List<Token> tokens;
+
+        private ListTokenStream(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public TokenStream fork() {
+            ListTokenStream fork = new ListTokenStream(tokens);
+            fork.index = index;
+            return fork;
+        }
+
+        @Override
+        public boolean has(int offset) {
+            return index + offset < tokens.size();
+        }
+
+        @Override
+        public Token.Type getType(int offset) {
+            return tokens.get(index + offset).getType();
+        }
+
+        @Override
+        public Token.Kind getKind(int offset) {
+            return tokens.get(index + offset).getKind();
+        }
+
+        @Override
+        public String getLiteral(int offset) {
+            return tokens.get(index + offset).getLiteral();
+        }
+
+        @Override
+        public int getIndex(int offset) {
+            return tokens.get(index + offset).getIndex();
+        }
+
+        @Override
+        public int getLength(int offset) {
+            return tokens.get(index + offset).getLength();
+        }
+
+    }
+
+    private static final class BufferTokenStream extends TokenStream {
+
+        private final TokenBuffer tokens;
+
+        private BufferTokenStream(TokenBuffer tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public TokenStream fork() {
+            BufferTokenStream fork = new BufferTokenStream(tokens);
+            fork.index = index;
+            return fork;
+        }
+
+        @Override
+        public boolean has(int offset) {
+            return index + offset < tokens.size();
+        }
+
+        @Override
+        public Token.Type getType(int offset) {
+            return tokens.getType(index + offset);
+        }
+
+        @Override
+        public Token.Kind getKind(int offset) {
+            return tokens.getKind(index + offset);
+        }
+
+        @Override
+        public String getLiteral(int offset) {
+            return tokens.getLiteral(index + offset);
+        }
+
+        @Override
+        public int getIndex(int offset) {
+            return tokens.getIndex(index + offset);
+        }
+
+        @Override
+        public int getLength(int offset) {
+            return tokens.getLength(index + offset);
+        }
+
+        @Override
+        public boolean literalEquals(int offset, String literal) {
+            return tokens.literalEquals(index + offset, literal);
+        }
+
+    }
+
+    private static final class LexerTokenStream extends TokenStream {
+
+        /**
+         * The ring size, which must be a power of two. One slot is kept for the
+         * previous token (used for {@link #eofIndex()}), leaving the rest for
+         * lookahead, which the parser never needs more than two of.
+         */
+        private static final int CAPACITY = 8;
+
+        private final Lexer lexer;
+        private final Token[] ring = new Token[CAPACITY];
+        private int lexed = 0;
+        private boolean exhausted = false;
+
+        private LexerTokenStream(Lexer lexer) {
+            this.lexer = lexer;
+        }
+
+        @Override
+        public boolean has(int offset) {
+            while (!exhausted && lexed <= index + offset) {
+                if (lexed - index >= CAPACITY - 1) {
+                    throw new IllegalStateException("Lookahead of " + offset + " tokens exceeds the token buffer.");
+                }
+                Token token = lexer.lexNext();
+                if (token == null) {
+                    exhausted = true;
+                } else {
+                    ring[lexed++ & (CAPACITY - 1)] = token;
+                }
+            }
+            return index + offset < lexed;
+        }
+
+        @Override
+        public Token.Type getType(int offset) {
+            return get(offset).getType();
+        }
+
+        @Override
+        public Token.Kind getKind(int offset) {
+            return get(offset).getKind();
+        }
+
+        @Override
+        public String getLiteral(int offset) {
+            return get(offset).getLiteral();
+        }
+
+        @Override
+        public int getIndex(int offset) {
+            return get(offset).getIndex();
+        }
+
+        @Override
+        public int getLength(int offset) {
+            return get(offset).getLength();
+        }
+
+        private Token get(int offset) {
+            if (offset >= 0 && !has(offset)) {
+                throw new IndexOutOfBoundsException("No token at offset " + offset + ".");
+            }
+            return ring[(index + offset) & (CAPACITY - 1)];
+        }
+
     }
 
 }
@@ -1,6 +1,7 @@
 package plc.project;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,7 +11,19 @@ public final class Scope {
 
     private final Scope parent;
     public final Map<String, Environment.Variable> variables = new HashMap<>();
-    public final Map<String, Environment.Function> functions = new HashMap<>();
+    private final Map<String, Environment.Function> definitions = new HashMap<>();
+    /**
+     * The functions defined in this scope, which are only added by {@link
+     * #defineFunction}, so every change counts in {@link #version}.
+     */
+    public final Map<String, Environment.Function> functions = Collections.unmodifiableMap(definitions);
+
+    /**
+     * The number of functions defined in this scope, so a function looked up
+     * from a scope is still the result of that lookup while this is unchanged
+     * for every scope from there up to the one it was found in.
+     */
+    private int version = 0;
 
     public Scope(Scope parent) {
         this.parent = parent;
@@ -57,11 +70,29 @@ public final class Scope {
             throw new RuntimeException("The function " + name + "/" + parameterTypes.size() + " is already defined in this scope.");
         } else {
             Environment.Function func = new Environment.Function(name, jvmName, parameterTypes, returnType, function);
-            functions.put(func.getName() + "/" + func.getParameterTypes().size(), func);
+            definitions.put(func.getName() + "/" + func.getParameterTypes().size(), func);
+            version++;
             return func;
         }
     }
 
+    /**
+     * Returns the total version of this scope and its ancestors up to and
+     * including the given one, which changes whenever a function is defined
+     * in one of them, and so whenever a function that {@link
+     * #lookupFunction(String, int)} found there from this scope may no longer
+     * be the one found.
+     */
+    int getVersion(Scope ancestor) {
+        int version = 0;
+        for (Scope scope = this; ; scope = scope.parent) {
+            version += scope.version;
+            if (scope == ancestor) {
+                return version;
+            }
+        }
+    }
+
     public Environment.Function lookupFunction(String name, int arity) {
         if (functions.containsKey(name + "/" + arity)) {
             return functions.get(name + "/" + arity);
@@ -0,0 +1,198 @@
+package plc.project;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of tokens made up of pieces of other token lists, used by
+ * {@link Lexer#relex(List, int, int, String)} to reuse the tokens around an
+ * edit without copying them. Each piece is a range of a list plus the amount
+ * to shift the index of its tokens by, and shifted tokens are created when
+ * they are accessed.
+ *
+ * Splicing a spliced list flattens its pieces rather than nesting views, so
+ * access stays a binary search over the pieces. Each edit adds at most two
+ * pieces, so after each edit the pieces of the edit and those on either side
+ * of it are copied into one, as long as that is at most {@link #MAX_COPY}
+ * tokens. Repeated edits in one place therefore leave few pieces, and neither
+ * splicing nor copying takes time proportional to the size of the list.
+ */
+final class SplicedTokenList extends AbstractList<Token> implements RandomAccess {
+
+    private static final int MAX_COPY = 1024;
+
+    private final List<Token>[] lists;
+    private final int[] froms;
+    private final int[] deltas;
+
+    /**
+     * The index in this list of the first token of each piece, followed by the
+     * size of this list.
+     */
+    private final int[] starts;
+
+    private SplicedTokenList(List<Token>[] lists, int[] froms, int[] deltas, int[] starts) {
+        this.lists = lists;
+        this.froms = froms;
+        this.deltas = deltas;
+        this.starts = starts;
+    }
+
+    /**
+     * Returns the tokens of {@code previous} before {@code head}, followed by
+     * {@code middle}, followed by the tokens of {@code previous} from
+     * {@code tail} on with their index shifted by {@code delta}.
+     */
+    static List<Token> splice(List<Token> previous, int head, List<Token> middle, int tail, int delta) {
+        Builder builder = new Builder();
+        builder.addAll(previous, 0, head, 0);
+        builder.add(middle, 0, middle.size(), 0);
+        builder.addAll(previous, tail, previous.size(), delta);
+        return builder.build().compact(head, head + middle.size());
+    }
+
+    /**
+     * Copies the pieces holding the tokens [from, to) of an edit, along with
+     * the pieces before and after it, into a single piece. If that would copy
+     * more than {@link #MAX_COPY} tokens, only the edit and one of its
+     * neighbors are copied, or nothing at all.
+     */
+    private SplicedTokenList compact(int from, int to) {
+        int size = size();
+        if (size == 0) {
+            return this;
+        }
+        int first = piece(Math.max(from - 1, 0));
+        int last = piece(Math.min(to, size - 1));
+        int[][] windows = from < to
+                ? new int[][] {{first, last}, {first, piece(to - 1)}, {piece(from), last}}
+                : new int[][] {{first, last}};
+        for (int[] window : windows) {
+            int low = window[0];
+            int high = window[1];
+            if (low < high && starts[high + 1] - starts[low] <= MAX_COPY) {
+                Builder builder = new Builder();
+                builder.addAll(this, 0, starts[low], 0);
+                builder.add(new ArrayList<>(subList(starts[low], starts[high + 1])), 0, starts[high + 1] - starts[low], 0);
+                builder.addAll(this, starts[high + 1], size, 0);
+                return builder.build();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of pieces, for tests.
+     */
+    int pieces() {
+        return lists.length;
+    }
+
+    /**
+     * Returns the piece holding the token at the given index.
+     */
+    private int piece(int index) {
+        int piece = Arrays.binarySearch(starts, 0, lists.length, index);
+        return piece < 0 ? -piece - 2 : piece;
+    }
+
+    /**
+     * Returns the index of the first token in the list whose index is at least
+     * {@code index}, or the size of the list if there is none. The tokens must
+     * be in order, as they are when returned by the lexer.
+     */
+    static int search(List<Token> tokens, int index) {
+        int low = 0;
+        int high = tokens.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens.get(mid).getIndex() < index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Token get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size() + ".");
+        }
+        int piece = piece(index);
+        Token token = lists[piece].get(froms[piece] + index - starts[piece]);
+        return deltas[piece] == 0 ? token : new Token(token.getType(), token.getLiteral(), token.getIndex() + deltas[piece], token.getLength());
+    }
+
+    @Override
+    public int size() {
+        return starts[lists.length];
+    }
+
+    private static final class Builder {
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private List<Token>[] lists = new List[4];
+        private int[] froms = new int[4];
+        private int[] deltas = new int[4];
+        private int[] starts = new int[5];
+        private int count = 0;
+
+        /**
+         * Adds the range [from, to) of the given list, using the pieces of the
+         * list if it is itself spliced.
+         */
+        private void addAll(List<Token> list, int from, int to, int delta) {
+            if (!(list instanceof SplicedTokenList)) {
+                add(list, from, to, delta);
+                return;
+            }
+            SplicedTokenList spliced = (SplicedTokenList) list;
+            for (int i = 0; i < spliced.lists.length; i++) {
+                int start = Math.max(from, spliced.starts[i]);
+                int end = Math.min(to, spliced.starts[i + 1]);
+                if (start < end) {
+                    int offset = spliced.froms[i] - spliced.starts[i];
+                    add(spliced.lists[i], start + offset, end + offset, spliced.deltas[i] + delta);
+                }
+            }
+        }
+
+        /**
+         * Adds the range [from, to) of the given list, skipping empty ranges so
+         * that pieces start at strictly increasing indices.
+         */
+        private void add(List<Token> list, int from, int to, int delta) {
+            if (from >= to) {
+                return;
+            }
+            if (count > 0 && lists[count - 1] == list && deltas[count - 1] == delta
+                    && froms[count - 1] + starts[count] - starts[count - 1] == from) {
+                starts[count] += to - from;
+                return;
+            }
+            if (count == lists.length) {
+                lists = Arrays.copyOf(lists, 2 * count);
+                froms = Arrays.copyOf(froms, 2 * count);
+                deltas = Arrays.copyOf(deltas, 2 * count);
+                starts = Arrays.copyOf(starts, 2 * count + 1);
+            }
+            lists[count] = list;
+            froms[count] = from;
+            deltas[count] = delta;
+            starts[count + 1] = starts[count] + to - from;
+            count++;
+        }
+
+        private SplicedTokenList build() {
+            return new SplicedTokenList(Arrays.copyOf(lists, count), Arrays.copyOf(froms, count),
+                    Arrays.copyOf(deltas, count), Arrays.copyOf(starts, count + 1));
+        }
+
+    }
+
+}
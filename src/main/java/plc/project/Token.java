@@ -11,20 +11,172 @@ public final class Token {
         OPERATOR
     }
 
+    /**
+     * A finer classification of keywords and operators, computed once when a
+     * token is lexed so the parser can switch on the kind of a token instead
+     * of comparing its literal against each keyword. All other tokens (such as
+     * names, literals, and unknown operators) have the kind {@link #NONE}.
+     */
+    public enum Kind {
+        NONE(""),
+        LET("LET"),
+        CONST("CONST"),
+        DEF("DEF"),
+        DO("DO"),
+        END("END"),
+        IF("IF"),
+        ELSE("ELSE"),
+        FOR("FOR"),
+        WHILE("WHILE"),
+        RETURN("RETURN"),
+        AND("AND"),
+        OR("OR"),
+        NIL("NIL"),
+        TRUE("TRUE"),
+        FALSE("FALSE"),
+        LEFT_PAREN("("),
+        RIGHT_PAREN(")"),
+        COMMA(","),
+        SEMICOLON(";"),
+        COLON(":"),
+        DOT("."),
+        ASSIGN("="),
+        EQUAL("=="),
+        NOT_EQUAL("!="),
+        LESS("<"),
+        LESS_EQUAL("<="),
+        GREATER(">"),
+        GREATER_EQUAL(">="),
+        PLUS("+"),
+        MINUS("-"),
+        STAR("*"),
+        SLASH("/"),
+        AND_AND("&&"),
+        OR_OR("||");
+
+        /**
+         * Keywords indexed by {@link #hash(CharSequence, int, int)}, which is a
+         * perfect hash for this set of keywords (checked when the table is
+         * built), so classifying an identifier takes one lookup and compare.
+         */
+        private static final Kind[] KEYWORDS = new Kind[32];
+
+        static {
+            for (Kind kind : new Kind[] {LET, CONST, DEF, DO, END, IF, ELSE, FOR, WHILE, RETURN, AND, OR, NIL, TRUE, FALSE}) {
+                int hash = hash(kind.literal, 0, kind.literal.length());
+                if (KEYWORDS[hash] != null) {
+                    throw new AssertionError("Keyword hash collision between " + KEYWORDS[hash] + " and " + kind + ".");
+                }
+                KEYWORDS[hash] = kind;
+            }
+        }
+
+        private final String literal;
+
+        Kind(String literal) {
+            this.literal = literal;
+        }
+
+        /**
+         * Returns the literal of this kind, such as {@code "LET"} or
+         * {@code "<="}, which is the same (interned) string for every token.
+         */
+        public String getLiteral() {
+            return literal;
+        }
+
+        public static Kind of(Type type, CharSequence source, int start, int length) {
+            if (type == Type.IDENTIFIER) {
+                if (length < 2 || length > 6) {
+                    return NONE;
+                }
+                Kind kind = KEYWORDS[hash(source, start, length)];
+                return kind != null && matches(kind.literal, source, start, length) ? kind : NONE;
+            } else if (type == Type.OPERATOR) {
+                char first = source.charAt(start);
+                if (length == 1) {
+                    switch (first) {
+                        case '(': return LEFT_PAREN;
+                        case ')': return RIGHT_PAREN;
+                        case ',': return COMMA;
+                        case ';': return SEMICOLON;
+                        case ':': return COLON;
+                        case '.': return DOT;
+                        case '=': return ASSIGN;
+                        case '<': return LESS;
+                        case '>': return GREATER;
+                        case '+': return PLUS;
+                        case '-': return MINUS;
+                        case '*': return STAR;
+                        case '/': return SLASH;
+                        default: return NONE;
+                    }
+                } else if (length == 2) {
+                    char second = source.charAt(start + 1);
+                    switch (first) {
+                        case '=': return second == '=' ? EQUAL : NONE;
+                        case '!': return second == '=' ? NOT_EQUAL : NONE;
+                        case '<': return second == '=' ? LESS_EQUAL : NONE;
+                        case '>': return second == '=' ? GREATER_EQUAL : NONE;
+                        case '&': return second == '&' ? AND_AND : NONE;
+                        case '|': return second == '|' ? OR_OR : NONE;
+                        default: return NONE;
+                    }
+                }
+            }
+            return NONE;
+        }
+
+        private static int hash(CharSequence source, int start, int length) {
+            return (source.charAt(start) + 19 * source.charAt(start + length - 1) + length) & 31;
+        }
+
+        private static boolean matches(String literal, CharSequence source, int start, int length) {
+            if (literal.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (literal.charAt(i) != source.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
     private final Type type;
+    private final Kind kind;
     private final String literal;
     private final int index;
+    private final int length;
 
     public Token(Type type, String literal, int index) {
+        this(type, literal, index, literal.length());
+    }
+
+    /**
+     * Creates a token spanning {@code length} characters of the input, which
+     * differs from the length of the literal when the input is a {@link
+     * MappedSource} (whose indices are byte offsets) and the literal contains
+     * non-ASCII characters.
+     */
+    public Token(Type type, String literal, int index, int length) {
         this.type = type;
+        this.kind = Kind.of(type, literal, 0, literal.length());
         this.literal = literal;
         this.index = index;
+        this.length = length;
     }
 
     public Type getType() {
         return type;
     }
 
+    public Kind getKind() {
+        return kind;
+    }
+
     public String getLiteral() {
         return literal;
     }
@@ -33,6 +185,14 @@ public final class Token {
         return index;
     }
 
+    /**
+     * Returns the number of characters of the input this token spans, in the
+     * same units as {@link #getIndex()}.
+     */
+    public int getLength() {
+        return length;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return obj instanceof Token
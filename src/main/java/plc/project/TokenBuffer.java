@@ -0,0 +1,124 @@
+package plc.project;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact store for the tokens of a source, kept as parallel arrays of the
+ * token type, kind, start index, and length over the original input. Unlike a
+ * {@code List<Token>}, no per-token objects are created while lexing; token
+ * literals are only created (and, for a {@link MappedSource}, decoded) when
+ * {@link #getLiteral(int)} or {@link #get(int)} is called.
+ */
+public final class TokenBuffer {
+
+    private static final Token.Type[] TYPES = Token.Type.values();
+    private static final Token.Kind[] KINDS = Token.Kind.values();
+
+    private final CharSequence source;
+    private int[] types = new int[16];
+    private int[] kinds = new int[16];
+    private int[] starts = new int[16];
+    private int[] lengths = new int[16];
+    private int size = 0;
+
+    public TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    public CharSequence getSource() {
+        return source;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Token.Type getType(int index) {
+        return TYPES[types[check(index)]];
+    }
+
+    public Token.Kind getKind(int index) {
+        return KINDS[kinds[check(index)]];
+    }
+
+    /**
+     * Returns the index of the token's first character in the source, the same
+     * value as {@link Token#getIndex()}.
+     */
+    public int getIndex(int index) {
+        return starts[check(index)];
+    }
+
+    public int getLength(int index) {
+        return lengths[check(index)];
+    }
+
+    public String getLiteral(int index) {
+        return source.subSequence(starts[check(index)], starts[index] + lengths[index]).toString();
+    }
+
+    /**
+     * Returns true if the token's literal is equal to the given string, without
+     * creating the literal.
+     */
+    public boolean literalEquals(int index, String literal) {
+        if (lengths[check(index)] != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (source.charAt(starts[index] + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Token get(int index) {
+        return new Token(getType(index), getLiteral(index), getIndex(index), getLength(index));
+    }
+
+    /**
+     * Returns a read-only view of this buffer as a list, creating each token
+     * when it is accessed.
+     */
+    public List<Token> asList() {
+        return new AbstractList<Token>() {
+
+            @Override
+            public Token get(int index) {
+                return TokenBuffer.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+        };
+    }
+
+    void add(Token.Type type, int start, int length) {
+        if (size == types.length) {
+            int capacity = size + (size >> 1);
+            types = Arrays.copyOf(types, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        types[size] = type.ordinal();
+        kinds[size] = Token.Kind.of(type, source, start, length).ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        size++;
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Token index " + index + " out of bounds for size " + size + ".");
+        }
+        return index;
+    }
+
+}
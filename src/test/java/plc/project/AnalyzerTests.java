@@ -8,7 +8,9 @@ import org.junit.jupiter.params.provider.MethodSource;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -600,6 +602,76 @@ public final class AnalyzerTests {
         );
     }
 
+    @ParameterizedTest(name = "{0}")
+    @MethodSource
+    public void testParallel(String test, String input) {
+        for (int count = 1; count <= 4; count++) {
+            Ast.Source expected = new Parser(new Lexer(input).lex()).parseSource();
+            Ast.Source ast = new Parser(new Lexer(input).lex()).parseSource();
+            RuntimeException sequential = null;
+            RuntimeException parallel = null;
+            try {
+                new Analyzer(parallelScope()).visit(expected);
+            } catch (RuntimeException e) {
+                sequential = e;
+            }
+            try {
+                new Analyzer(parallelScope()).visitParallel(ast, ForkJoinPool.commonPool(), count);
+            } catch (RuntimeException e) {
+                parallel = e;
+            }
+            if (sequential == null) {
+                Assertions.assertNull(parallel);
+                Assertions.assertEquals(expected, ast);
+            } else {
+                Assertions.assertNotNull(parallel);
+                Assertions.assertEquals(sequential.getMessage(), parallel.getMessage());
+            }
+        }
+    }
+    private static Stream<Arguments> testParallel() {
+        return Stream.of(
+                Arguments.of("Ordered", String.join("\n",
+                        "LET x: Integer = 1;",
+                        "DEF a(n: Integer): Integer DO RETURN n + x; END",
+                        "DEF b(): Integer DO RETURN a(2); END",
+                        "DEF main(): Integer DO print(b()); RETURN 0; END"
+                )),
+                Arguments.of("Later Function", String.join("\n",
+                        "DEF a(): Integer DO RETURN b(); END",
+                        "DEF b(): Integer DO RETURN 1; END",
+                        "DEF main(): Integer DO RETURN 0; END"
+                )),
+                Arguments.of("Parent Function", String.join("\n",
+                        "DEF a(): Integer DO RETURN twice(); END",
+                        "DEF twice(): Integer DO RETURN 2; END",
+                        "DEF main(): Integer DO RETURN a(); END"
+                )),
+                Arguments.of("First Error", String.join("\n",
+                        "DEF a(): Integer DO IF 1 DO print(1); END RETURN 0; END",
+                        "DEF b(): Integer DO RETURN TRUE; END",
+                        "DEF a(): Integer DO RETURN 0; END",
+                        "DEF main(): Integer DO RETURN 0; END"
+                )),
+                Arguments.of("Signature Error", String.join("\n",
+                        "DEF a(): Integer DO RETURN 0; END",
+                        "DEF a(): Integer DO RETURN 0; END",
+                        "DEF main(): Integer DO RETURN TRUE; END"
+                )),
+                Arguments.of("Missing Main", String.join("\n",
+                        "DEF a(): Integer DO RETURN 0; END"
+                ))
+        );
+    }
+
+    /**
+     * Returns a scope defining a function {@code twice/0} outside the scope
+     * methods are declared in, for {@link #testParallel(String, String)}.
+     */
+    private static Scope parallelScope() {
+        return init(new Scope(null), scope -> scope.defineFunction("twice", "Parent.twice", Collections.emptyList(), Environment.Type.INTEGER, args -> Environment.NIL));
+    }
+
     /**
      * Helper function for tests. If {@param expected} is {@code null}, analysis
      * is expected to throw a {@link RuntimeException}.
@@ -0,0 +1,71 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+final class CompilationCacheTests {
+
+    // DEF main(): Integer DO
+    //     print("Hello, World!");
+    //     RETURN 0;
+    // END
+    private static final String SOURCE = "DEF main(): Integer DO\n    print(\"Hello, World!\");\n    RETURN 0;\nEND";
+
+    @Test
+    void testHit() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            CompilationCache cache = new CompilationCache(directory, 1 << 20);
+            String java = cache.generate(SOURCE);
+            Assertions.assertEquals(0, cache.getHits());
+            Assertions.assertEquals(3, cache.getMisses());
+
+            CompilationCache other = new CompilationCache(directory, 1 << 20);
+            Assertions.assertEquals(java, other.generate(SOURCE));
+            Assertions.assertEquals(new Lexer(SOURCE).lex(), other.lex(SOURCE));
+            Ast.Source ast = new Parser(new Lexer(SOURCE).lex()).parseSource();
+            new Analyzer(new Scope(null)).visit(ast);
+            Assertions.assertEquals(ast, other.analyze(SOURCE));
+            Assertions.assertEquals(3, other.getHits());
+            Assertions.assertEquals(0, other.getMisses());
+
+            StringWriter writer = new StringWriter();
+            new Generator(new PrintWriter(writer)).visit(ast);
+            Assertions.assertEquals(writer.toString(), java);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void testEviction() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        try {
+            CompilationCache cache = new CompilationCache(directory, 0);
+            cache.lex(SOURCE);
+            Assertions.assertEquals(1, cache.getEvictions());
+            cache.lex(SOURCE);
+            Assertions.assertEquals(0, cache.getHits());
+            Assertions.assertEquals(2, cache.getMisses());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+}
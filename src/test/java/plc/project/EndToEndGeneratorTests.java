@@ -1,12 +1,16 @@
 package plc.project;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.function.Function;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -164,6 +168,37 @@ public class EndToEndGeneratorTests {
         );
     }
 
+    @Test
+    void testArenaFile() throws IOException {
+        // LET CONST scale: Decimal = 1.5;
+        // DEF main(): Integer DO
+        //     LET name = "text";
+        //     print(name.slice(0, name.length));
+        //     RETURN 0;
+        // END
+        String input = "LET CONST scale: Decimal = 1.5;\nDEF main(): Integer DO\n    LET name = \"text\";\n    print(name.slice(0, name.length));\n    RETURN 0;\nEND";
+        Ast.Source ast = new Parser(new Lexer(input).lex()).parseSource();
+        new Analyzer(new Scope(null)).visit(ast);
+        Path file = Files.createTempFile("arena", ".bin");
+        Path copy = file.resolveSibling(file.getFileName() + ".copy");
+        try {
+            AstArena.ofAnalyzed(ast).write(file);
+            Ast.Source loaded = AstArena.read(file).toSource();
+            Assertions.assertEquals(ast, loaded);
+            StringWriter expected = new StringWriter();
+            new Generator(new PrintWriter(expected)).visit(ast);
+            StringWriter actual = new StringWriter();
+            new Generator(new PrintWriter(actual)).visit(loaded);
+            Assertions.assertEquals(expected.toString(), actual.toString());
+            // an arena read from a file reads the rest of it to write it again
+            AstArena.read(file).write(copy);
+            Assertions.assertEquals(ast, AstArena.read(copy).toSource());
+        } finally {
+            Files.delete(file);
+            Files.deleteIfExists(copy);
+        }
+    }
+
     /**
      * Helper function for tests, using a StringWriter as the output stream.
      */
@@ -7,9 +7,15 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Stream;
 import java.util.function.Function;
@@ -267,10 +273,228 @@ final class EndToEndInterpreterTests {
                 Arguments.of("Division",
                         "1.2 / 3.4",
                         new BigDecimal("0.4")
+                ),
+                // 9223372036854775807 + 1
+                Arguments.of("Addition Overflow",
+                        "9223372036854775807 + 1",
+                        new BigInteger("9223372036854775808")
+                ),
+                // 4294967296 * 4294967296 / 4294967296 - 4294967296
+                Arguments.of("Overflow & Back",
+                        "4294967296 * 4294967296 / 4294967296 - 4294967296",
+                        BigInteger.ZERO
+                ),
+                // 18446744073709551616 / 2 > 9223372036854775807
+                Arguments.of("Comparison After Overflow",
+                        "18446744073709551616 / 2 > 9223372036854775807",
+                        true
+                ),
+                // (0 - 9223372036854775807 - 1) / (0 - 1)
+                Arguments.of("Division Overflow",
+                        "(0 - 9223372036854775807 - 1) / (0 - 1)",
+                        new BigInteger("9223372036854775808")
                 )
         );
     }
 
+    @Test
+    void testLongBinaryChain() {
+        // DEF main(): Integer DO RETURN 1 + 1 + ... + 1; END
+        StringBuilder input = new StringBuilder("DEF main(): Integer DO RETURN 1");
+        for (int i = 0; i < 1_000_000; i++) {
+            input.append(" + 1");
+        }
+        input.append("; END");
+        Ast.Source ast = new Parser(new Lexer(input.toString()).lex()).parseSource();
+        new Analyzer(new Scope(null)).visit(ast);
+        Assertions.assertEquals(BigInteger.valueOf(1_000_001), new Interpreter(new Scope(null)).visit(ast).getValue());
+        StringWriter writer = new StringWriter();
+        new Generator(new PrintWriter(writer)).visit(ast);
+        Assertions.assertTrue(writer.toString().contains("return 1 + 1 + 1"));
+    }
+
+    @Test
+    void testSharedValues() {
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        // 1 < 2, 1000 + 23, 'a'
+        Assertions.assertSame(Environment.create(true), interpreter.visit(new Parser(new Lexer("1 < 2").lex()).parseExpression()));
+        Assertions.assertSame(Environment.create(BigInteger.valueOf(1023)), interpreter.visit(new Parser(new Lexer("1000 + 23").lex()).parseExpression()));
+        Assertions.assertSame(Environment.create('a'), interpreter.visit(new Parser(new Lexer("'a'").lex()).parseExpression()));
+        Assertions.assertNotSame(Environment.createInteger(1024), Environment.createInteger(1024));
+        Assertions.assertEquals(BigInteger.valueOf(-128), Environment.createInteger(-128).getValue());
+    }
+
+    @Test
+    void testCallSiteCache() {
+        // DEF main(): Integer DO RETURN g(); END
+        Ast.Source ast = new Parser(new Lexer("DEF main(): Integer DO RETURN g(); END").lex()).parseSource();
+        Scope types = new Scope(null);
+        types.defineFunction("g", "g", Arrays.asList(), Environment.Type.INTEGER, args -> Environment.NIL);
+        new Analyzer(types).visit(ast);
+        Scope parent = new Scope(null);
+        parent.defineFunction("g", 0, args -> Environment.create(BigInteger.ONE));
+        Interpreter interpreter = new Interpreter(parent);
+        Assertions.assertEquals(BigInteger.ONE, interpreter.visit(ast).getValue());
+        Ast.Expression.Function call = (Ast.Expression.Function) ((Ast.Statement.Return) ast.getMethods().get(0).getStatements().get(0)).getValue();
+        Assertions.assertNotNull(call.getCallSite());
+        // definitions in unrelated scopes, such as by other interpreters, keep the cache
+        Interpreter.CallSite site = call.getCallSite();
+        new Analyzer(new Scope(null));
+        new Interpreter(new Scope(null)).getScope().defineFunction("g", 0, args -> Environment.NIL);
+        Assertions.assertEquals(BigInteger.ONE, interpreter.getScope().lookupFunction("main", 0).invoke(Arrays.asList()).getValue());
+        Assertions.assertSame(site, call.getCallSite());
+        // functions are only added through defineFunction, which every lookup sees
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> parent.functions.put("g/0", null));
+        // a closer definition hides the cached one
+        interpreter.getScope().defineFunction("g", 0, args -> Environment.create(BigInteger.TEN));
+        Assertions.assertEquals(BigInteger.TEN, interpreter.getScope().lookupFunction("main", 0).invoke(Arrays.asList()).getValue());
+        Assertions.assertEquals(BigInteger.ONE, new Interpreter(parent).visit(ast).getValue());
+        // unanalyzed calls run in a new scope each time, so are not cached
+        Ast.Expression expression = new Parser(new Lexer("g()").lex()).parseExpression();
+        Assertions.assertEquals(BigInteger.ONE, new Interpreter(parent).visit(expression).getValue());
+        Assertions.assertNull(((Ast.Expression.Function) expression).getCallSite());
+    }
+
+    @Test
+    void testDeeplyNestedGroups() {
+        // ((...(1 + 10)...))
+        String input = "(".repeat(100_000) + "1 + 10" + ")".repeat(100_000);
+        test(input, BigInteger.valueOf(11), new Scope(null), Parser::parseExpression);
+    }
+
+    @Test
+    void testArena() {
+        // LET x: Integer = 1; DEF main(): Integer DO WHILE x < 100 DO x = x * 2; END RETURN x; END
+        String input = "LET x: Integer = 1; DEF main(): Integer DO WHILE x < 100 DO x = x * 2; END RETURN x; END";
+        Ast.Source ast = new Parser(new Lexer(input)).parseSourceArena().toSource();
+        new Analyzer(new Scope(null)).visit(ast);
+        Assertions.assertEquals(BigInteger.valueOf(128), new Interpreter(new Scope(null)).visit(ast).getValue());
+    }
+
+    @Test
+    void testArenaAnalyzer() {
+        String input = "LET x: Integer = 1; DEF twice(n: Integer): Integer DO RETURN n * 2; END DEF main(): Integer DO WHILE x < 100 DO x = twice(x); END RETURN x; END";
+        AstArena arena = new Analyzer(new Scope(null)).visit(new Parser(new Lexer(input)).parseSourceArena());
+        Ast.Source ast = arena.toSource();
+        Assertions.assertEquals(1, ast.getMethods().get(0).getFrameSize());
+        Assertions.assertEquals(ast.getMethods().get(1).getStatements(), ast.getMethods().get(1).getStatements());
+        Assertions.assertEquals(BigInteger.valueOf(128), new Interpreter(new Scope(null)).visit(ast).getValue());
+        Ast.Source expected = new Parser(new Lexer(input).lex()).parseSource();
+        new Analyzer(new Scope(null)).visit(expected);
+        Assertions.assertEquals(expected.toString(), ast.toString());
+    }
+
+    @Test
+    void testFrames() throws IOException {
+        String input = String.join("\n",
+                "LET total: Integer = 0;",
+                "DEF sum(n: Integer): Integer DO",
+                "    IF n == 0 DO RETURN 0; END",
+                "    RETURN n + sum(n - 1);",
+                "END",
+                "DEF main(): Integer DO",
+                "    LET i = 0;",
+                "    LET x = 100;",
+                "    WHILE i < 10 DO",
+                "        IF i > 5 DO LET x = 1; total = total + x; ELSE total = total + i; END",
+                "        i = i + 1;",
+                "    END",
+                "    IF i == 10 DO LET y = x; total = total + y; END",
+                "    RETURN total + sum(4);",
+                "END"
+        );
+        Ast.Source ast = new Parser(new Lexer(input).lex()).parseSource();
+        Assertions.assertEquals(BigInteger.valueOf(129), new Interpreter(new Scope(null)).visit(ast).getValue());
+        new Analyzer(new Scope(null)).visit(ast);
+        Assertions.assertEquals(1, ast.getMethods().get(0).getFrameSize());
+        // i, then x and the x shadowing it, whose slots y reuses
+        Assertions.assertEquals(3, ast.getMethods().get(1).getFrameSize());
+        Assertions.assertEquals(BigInteger.valueOf(129), new Interpreter(new Scope(null)).visit(ast).getValue());
+        Path file = Files.createTempFile("arena", ".bin");
+        Path truncated = file.resolveSibling(file.getFileName() + ".truncated");
+        try {
+            AstArena.ofAnalyzed(ast).write(file);
+            Ast.Source loaded = AstArena.read(file).toSource();
+            Assertions.assertEquals(3, loaded.getMethods().get(1).getFrameSize());
+            Assertions.assertEquals(BigInteger.valueOf(129), new Interpreter(new Scope(null)).visit(loaded).getValue());
+            AstArena arena = AstArena.read(file);
+            Assertions.assertEquals("main", arena.getName(arena.getMethod(1)));
+            Assertions.assertEquals(AstArena.Kind.DECLARATION, arena.getKind(arena.getChild(arena.getMethod(1), 0)));
+            Files.write(truncated, Arrays.copyOf(Files.readAllBytes(file), 40));
+            Assertions.assertThrows(IOException.class, () -> AstArena.read(truncated));
+        } finally {
+            Files.delete(file);
+            Files.deleteIfExists(truncated);
+        }
+    }
+
+    @Test
+    void testFramesFields() {
+        String input = "LET a: Integer = 1; LET b: Integer = 2; DEF main(): Integer DO b = b + 10; RETURN a * 100 + b; END";
+        Ast.Source ast = new Parser(new Lexer(input).lex()).parseSource();
+        new Analyzer(new Scope(null)).visit(ast);
+        Assertions.assertEquals(BigInteger.valueOf(112), new Interpreter(new Scope(null)).visit(ast).getValue());
+        // the fields visited in another order
+        List<Ast.Field> reversed = Arrays.asList(ast.getFields().get(1), ast.getFields().get(0));
+        Assertions.assertEquals(BigInteger.valueOf(112), new Interpreter(new Scope(null)).visit(new Ast.Source(reversed, ast.getMethods())).getValue());
+        // the method visited directly, with the fields defined in the scope
+        Scope scope = new Scope(null);
+        scope.defineVariable("a", false, Environment.create(BigInteger.valueOf(3)));
+        scope.defineVariable("b", false, Environment.create(BigInteger.valueOf(4)));
+        Interpreter interpreter = new Interpreter(scope);
+        interpreter.visit(ast.getMethods().get(0));
+        Assertions.assertEquals(BigInteger.valueOf(314), interpreter.getScope().lookupFunction("main", 0).invoke(Arrays.asList()).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(14), scope.lookupVariable("b").getValue().getValue());
+    }
+
+    @Test
+    void testFramesLoopDeclaration() {
+        // a declaration directly in a loop body is defined again on the second
+        // iteration, which is an error whether or not the program was analyzed
+        String repeated = "DEF main(): Integer DO LET i = 0; WHILE i < 2 DO LET x = i; i = i + 1; END RETURN i; END";
+        // a declaration in a nested block is in a new scope each iteration
+        String nested = "DEF main(): Integer DO LET i = 0; WHILE i < 2 DO IF TRUE DO LET x = i; END i = i + 1; END RETURN i; END";
+        for (boolean analyze : new boolean[] {false, true}) {
+            Ast.Source ast = new Parser(new Lexer(repeated).lex()).parseSource();
+            Ast.Source other = new Parser(new Lexer(nested).lex()).parseSource();
+            if (analyze) {
+                new Analyzer(new Scope(null)).visit(ast);
+                new Analyzer(new Scope(null)).visit(other);
+            }
+            RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> new Interpreter(new Scope(null)).visit(ast));
+            Assertions.assertEquals("The variable x is already defined in this scope.", exception.getMessage());
+            Assertions.assertEquals(BigInteger.valueOf(2), new Interpreter(new Scope(null)).visit(other).getValue());
+        }
+    }
+
+    @Test
+    void testNestedReturn() {
+        String input = String.join("\n",
+                "LET calls: Integer = 0;",
+                "DEF find(limit: Integer): Integer DO",
+                "    LET i = 0;",
+                "    LET j = 0;",
+                "    calls = calls + 1;",
+                "    WHILE TRUE DO",
+                "        FOR (j = 0; j < 10; j = j + 1)",
+                "            IF i * j == limit DO RETURN i * 100 + j; END",
+                "        END",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN -1;",
+                "END",
+                "DEF main(): Integer DO RETURN find(12) + find(35) + calls; END"
+        );
+        // 2 * 6 and 5 * 7 are found first, then calls is 2
+        for (boolean analyze : new boolean[] {false, true}) {
+            Ast.Source ast = new Parser(new Lexer(input).lex()).parseSource();
+            if (analyze) {
+                new Analyzer(new Scope(null)).visit(ast);
+            }
+            Assertions.assertEquals(BigInteger.valueOf(206 + 507 + 2), new Interpreter(new Scope(null)).visit(ast).getValue());
+        }
+    }
+
     @ParameterizedTest
     @MethodSource
     void testAccessExpression(String test, String input, Object expected) {
@@ -6,8 +6,13 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
 
 public class LexerTests {
@@ -236,6 +241,174 @@ public class LexerTests {
         );
     }
 
+    @Test
+    void testBuffer() {
+        String input = "LET i = -1;\nDEF foo() DO\n    print(\"bar\", 'c', 1.5);\nEND";
+        TokenBuffer buffer = new Lexer(input).lexBuffer();
+        Assertions.assertEquals(new Lexer(input).lex(), buffer.asList());
+        Assertions.assertTrue(buffer.literalEquals(4, ";"));
+        Assertions.assertFalse(buffer.literalEquals(5, "DEFINE"));
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testRelex(String test, String input, int offset, int deleted, String inserted) {
+        String edited = input.substring(0, offset) + inserted + input.substring(offset + deleted);
+        List<Token> previous = new Lexer(input).lex();
+        Assertions.assertEquals(new Lexer(edited).lex(), new Lexer(edited).relex(previous, offset, deleted, inserted));
+    }
+
+    private static Stream<Arguments> testRelex() {
+        String input = "LET i = -1;\nDEF foo() DO\n    print(\"bar\", 'c', 1.5);\nEND";
+        return Stream.of(
+                Arguments.of("Insert", input, 4, 0, "j"),
+                Arguments.of("Delete", input, 8, 1, ""),
+                Arguments.of("Replace", input, 18, 3, "foo(x)"),
+                Arguments.of("Split Token", input, 30, 0, "\n"),
+                Arguments.of("Join Lines", input, 11, 1, ""),
+                Arguments.of("Across Lines", input, 6, 20, "= 2; LET j"),
+                Arguments.of("Start", input, 0, 0, "LET x;\n"),
+                Arguments.of("End", input, input.length(), 0, " DEF"),
+                Arguments.of("Everything", input, 0, input.length(), "x")
+        );
+    }
+
+    @Test
+    void testRelexRepeated() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("LET x").append(i).append(" = ").append(i).append(";\n");
+        }
+        String input = builder.toString();
+        List<Token> tokens = new Lexer(input).lex();
+        for (int i = 0; i < 100; i++) {
+            int offset = (i * 37) % input.length();
+            String inserted = i % 3 == 0 ? "\n" : "y" + i;
+            input = input.substring(0, offset) + inserted + input.substring(offset + 1);
+            tokens = new Lexer(input).relex(tokens, offset, 1, inserted);
+            Assertions.assertEquals(new Lexer(input).lex(), tokens);
+        }
+    }
+
+    @Test
+    void testRelexSameLine() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("LET x").append(i).append(" = ").append(i).append(";\n");
+        }
+        String input = builder.toString();
+        List<Token> tokens = new Lexer(input).lex();
+        int offset = input.length() / 2;
+        for (int i = 0; i < 100; i++) {
+            String inserted = i % 2 == 0 ? "y" : "z";
+            input = input.substring(0, offset) + inserted + input.substring(offset + 1);
+            tokens = new Lexer(input).relex(tokens, offset, 1, inserted);
+            // the tokens around the line are reused, not copied
+            Assertions.assertTrue(((SplicedTokenList) tokens).pieces() <= 3);
+        }
+        Assertions.assertEquals(new Lexer(input).lex(), tokens);
+    }
+
+    @Test
+    void testRelexMismatch() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new Lexer("LET x;").relex(Arrays.asList(), 0, 0, "DEF"));
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testKind(String test, String input, Token.Kind expected) {
+        Token token = new Lexer(input).lexToken();
+        Assertions.assertEquals(expected, token.getKind());
+        Assertions.assertEquals(expected, new Lexer(input).lexBuffer().getKind(0));
+    }
+
+    private static Stream<Arguments> testKind() {
+        return Stream.of(
+                Arguments.of("Keyword", "RETURN", Token.Kind.RETURN),
+                Arguments.of("Short Keyword", "DO", Token.Kind.DO),
+                Arguments.of("Keyword Prefix", "DEFINE", Token.Kind.NONE),
+                Arguments.of("Lowercase Keyword", "let", Token.Kind.NONE),
+                Arguments.of("Same Hash", "LXT", Token.Kind.NONE),
+                Arguments.of("Identifier", "x", Token.Kind.NONE),
+                Arguments.of("Operator", "<=", Token.Kind.LESS_EQUAL),
+                Arguments.of("Single Operator", "(", Token.Kind.LEFT_PAREN),
+                Arguments.of("Unknown Operator", "!", Token.Kind.NONE),
+                Arguments.of("String", "\"LET\"", Token.Kind.NONE),
+                Arguments.of("Integer", "1", Token.Kind.NONE)
+        );
+    }
+
+    @Test
+    void testMappedSource() throws IOException {
+        String input = "LET i = -1;\nDEF foo() DO\n    print(\"bar\", 'c', 1.5);\nEND";
+        Path path = Files.createTempFile("source", ".plc");
+        try {
+            Files.write(path, input.getBytes(StandardCharsets.UTF_8));
+            TokenBuffer buffer = new Lexer(MappedSource.map(path)).lexBuffer();
+            Assertions.assertEquals(new Lexer(input).lex(), buffer.asList());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testMappedSourceUnicode() throws IOException {
+        Path path = Files.createTempFile("source", ".plc");
+        try {
+            Files.write(path, "x = \"caf\u00e9\" + '\u00e9';".getBytes(StandardCharsets.UTF_8));
+            Assertions.assertEquals(Arrays.asList(
+                    new Token(Token.Type.IDENTIFIER, "x", 0),
+                    new Token(Token.Type.OPERATOR, "=", 2),
+                    new Token(Token.Type.STRING, "\"caf\u00e9\"", 4),
+                    new Token(Token.Type.OPERATOR, "+", 12),
+                    new Token(Token.Type.CHARACTER, "'\u00e9'", 14),
+                    new Token(Token.Type.OPERATOR, ";", 18)
+            ), new Lexer(MappedSource.map(path)).lex());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testMappedSourceErrorIndex() throws IOException {
+        Path path = Files.createTempFile("source", ".plc");
+        try {
+            // LET x: String = "café" is 23 bytes, since é is 2 bytes in UTF-8
+            Files.write(path, "LET x: String = \"caf\u00e9\"".getBytes(StandardCharsets.UTF_8));
+            List<Token> tokens = new Lexer(MappedSource.map(path)).lex();
+            Assertions.assertEquals(7, tokens.get(5).getLength());
+            ParseException exception = Assertions.assertThrows(ParseException.class, () -> new Parser(tokens).parseSource());
+            Assertions.assertEquals(23, exception.getIndex());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testParallel() {
+        String input = "LET i = -1;\nLET inc = 2;\nDEF foo() DO\n    WHILE i <= 1 DO\n        IF i > 0 DO\n            print(\"bar\");\n        END\n        i = i + inc;\n    END\nEND";
+        for (int size = 1; size < input.length(); size += 7) {
+            Assertions.assertEquals(new Lexer(input).lex(), new Lexer(input).lexParallel(ForkJoinPool.commonPool(), size));
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testParallelException(String test, String input, int index) {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Lexer(input).lexParallel(ForkJoinPool.commonPool(), 1));
+        Assertions.assertEquals(index, exception.getIndex());
+    }
+
+    private static Stream<Arguments> testParallelException() {
+        return Stream.of(
+                Arguments.of("String Across Lines", "x = 1;\ny = \"abc\ndef\";", 15),
+                Arguments.of("First Of Several", "x;\n'';\ny = \"abc\ndef\";\n\"unterminated", 4),
+                Arguments.of("Last Line", "x;\ny;\n\"unterminated", 19)
+        );
+    }
+
     @Test
     void testException() {
         ParseException exception = Assertions.assertThrows(ParseException.class,
@@ -243,6 +416,25 @@ public class LexerTests {
         Assertions.assertEquals(13, exception.getIndex());
     }
 
+    @ParameterizedTest
+    @MethodSource
+    void testExceptionIndex(String test, String input, int index) {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Lexer(input).lex());
+        Assertions.assertEquals(index, exception.getIndex());
+    }
+
+    private static Stream<Arguments> testExceptionIndex() {
+        return Stream.of(
+                Arguments.of("String Across Lines", "x = \"abc\ndef\";", 8),
+                Arguments.of("Invalid String Escape", "\"ab\\q\"", 4),
+                Arguments.of("Unterminated Escape", "\"ab\\", 4),
+                Arguments.of("Empty Character", "LET c = '';", 9),
+                Arguments.of("Character Across Lines", "'\n'", 1),
+                Arguments.of("Unterminated Character", "'ab'", 2)
+        );
+    }
+
     /**
      * Tests that lexing the input through {@link Lexer#lexToken()} produces a
      * single token with the expected type and literal matching the input.
@@ -8,10 +8,15 @@ import org.junit.jupiter.params.provider.MethodSource;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -399,6 +404,55 @@ final class ParserModifiedTests {
                                 new Ast.Expression.Access(Optional.empty(), "expr1"),
                                 new Ast.Expression.Access(Optional.empty(), "expr2")
                         )
+                ),
+                Arguments.of("Binary Precedence",
+                        Arrays.asList(
+                                //a || b == c + d * e
+                                new Token(Token.Type.IDENTIFIER, "a", 0),
+                                new Token(Token.Type.OPERATOR, "||", 2),
+                                new Token(Token.Type.IDENTIFIER, "b", 5),
+                                new Token(Token.Type.OPERATOR, "==", 7),
+                                new Token(Token.Type.IDENTIFIER, "c", 10),
+                                new Token(Token.Type.OPERATOR, "+", 12),
+                                new Token(Token.Type.IDENTIFIER, "d", 14),
+                                new Token(Token.Type.OPERATOR, "*", 16),
+                                new Token(Token.Type.IDENTIFIER, "e", 18)
+                        ),
+                        new Ast.Expression.Binary("||",
+                                new Ast.Expression.Access(Optional.empty(), "a"),
+                                new Ast.Expression.Binary("==",
+                                        new Ast.Expression.Access(Optional.empty(), "b"),
+                                        new Ast.Expression.Binary("+",
+                                                new Ast.Expression.Access(Optional.empty(), "c"),
+                                                new Ast.Expression.Binary("*",
+                                                        new Ast.Expression.Access(Optional.empty(), "d"),
+                                                        new Ast.Expression.Access(Optional.empty(), "e")
+                                                )
+                                        )
+                                )
+                        )
+                ),
+                Arguments.of("Binary Associativity",
+                        Arrays.asList(
+                                //a - b * c - d
+                                new Token(Token.Type.IDENTIFIER, "a", 0),
+                                new Token(Token.Type.OPERATOR, "-", 2),
+                                new Token(Token.Type.IDENTIFIER, "b", 4),
+                                new Token(Token.Type.OPERATOR, "*", 6),
+                                new Token(Token.Type.IDENTIFIER, "c", 8),
+                                new Token(Token.Type.OPERATOR, "-", 10),
+                                new Token(Token.Type.IDENTIFIER, "d", 12)
+                        ),
+                        new Ast.Expression.Binary("-",
+                                new Ast.Expression.Binary("-",
+                                        new Ast.Expression.Access(Optional.empty(), "a"),
+                                        new Ast.Expression.Binary("*",
+                                                new Ast.Expression.Access(Optional.empty(), "b"),
+                                                new Ast.Expression.Access(Optional.empty(), "c")
+                                        )
+                                ),
+                                new Ast.Expression.Access(Optional.empty(), "d")
+                        )
                 )
         );
     }
@@ -555,6 +609,356 @@ final class ParserModifiedTests {
         test(input, expected, Parser::parseSource);
     }
 
+    @ParameterizedTest
+    @MethodSource
+    void testTokenBuffer(String test, String input) {
+        Ast.Source expected = new Parser(new Lexer(input).lex()).parseSource();
+        Assertions.assertEquals(expected, new Parser(new Lexer(input).lexBuffer()).parseSource());
+    }
+
+    private static Stream<Arguments> testTokenBuffer() {
+        return Stream.of(
+                Arguments.of("Example", EXAMPLE),
+                Arguments.of("Literals", "LET s: String = \"a\\tb\"; LET c: Character = '\\n'; LET d: Decimal = -0.5;")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testTokenBufferException(String test, String input, int index) {
+        ParseException list = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(input).lex()).parseSource());
+        ParseException buffer = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(input).lexBuffer()).parseSource());
+        Assertions.assertEquals(index, list.getIndex());
+        Assertions.assertEquals(index, buffer.getIndex());
+    }
+
+    private static Stream<Arguments> testTokenBufferException() {
+        return Stream.of(
+                Arguments.of("Missing Semicolon", "DEF main() DO x END", 16),
+                Arguments.of("Missing Semicolon At End", "LET x: Integer = 10", 19)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("testTokenBuffer")
+    void testPipeline(String test, String input) {
+        Ast.Source expected = new Parser(new Lexer(input).lex()).parseSource();
+        Assertions.assertEquals(expected, new Parser(new Lexer(input)).parseSource());
+    }
+
+    @ParameterizedTest
+    @MethodSource("testTokenBufferException")
+    void testPipelineException(String test, String input, int index) {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(input)).parseSource());
+        Assertions.assertEquals(index, exception.getIndex());
+    }
+
+    @ParameterizedTest
+    @MethodSource("testTokenBuffer")
+    void testValidate(String test, String input) {
+        Assertions.assertEquals(-1, new Parser(new Lexer(input).lex()).validateSource());
+        Assertions.assertEquals(-1, new Parser(new Lexer(input).lexBuffer()).validateSource());
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testValidateException(String test, String input, int index) {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(input).lex()).parseSource());
+        Assertions.assertEquals(index, exception.getIndex());
+        Assertions.assertEquals(index, new Parser(new Lexer(input).lex()).validateSource());
+        Assertions.assertEquals(index, new Parser(new Lexer(input)).validateSource());
+    }
+
+    private static Stream<Arguments> testValidateException() {
+        return Stream.of(
+                Arguments.of("Missing Semicolon", "DEF main() DO x END", 16),
+                Arguments.of("Missing Semicolon At End", "LET x: Integer = 10", 19),
+                Arguments.of("Trailing Comma", "DEF main() DO f(1, (2),); END", 23),
+                Arguments.of("Missing Parenthesis", "DEF main() DO RETURN (1 + x.y(2; END", 31),
+                Arguments.of("Missing Else Body End", "DEF main() DO IF x DO ELSE y;", 29),
+                Arguments.of("Unexpected Token", "DEF main() DO END LET x: Integer;", 18)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testLazy(String test, String input) {
+        Ast.Source expected = new Parser(new Lexer(input).lex()).parseSource();
+        Assertions.assertEquals(expected, new Parser(new Lexer(input).lex()).parseSourceLazily());
+        Assertions.assertEquals(expected, new Parser(new Lexer(input).lexBuffer()).parseSourceLazily());
+        Assertions.assertEquals(expected, new Parser(new Lexer(input)).parseSourceLazily());
+    }
+
+    private static Stream<Arguments> testLazy() {
+        return Stream.of(
+                Arguments.of("Example", EXAMPLE),
+                Arguments.of("Nested", "DEF f() DO IF x DO WHILE y DO z; END ELSE FOR (i = 0; i < 1;) END END END DEF g() DO END"),
+                Arguments.of("Keyword Names", "DEF f() DO x = END; FOR (i = 0; FOR < 1;) f(IF); END RETURN WHILE; END")
+        );
+    }
+
+    @Test
+    void testLazyBodyException() {
+        // the error in the body of f is only found once its statements are needed
+        Ast.Source ast = new Parser(new Lexer("DEF f() DO x = ; END DEF g() DO END").lex()).parseSourceLazily();
+        Assertions.assertEquals(Arrays.asList(), ast.getMethods().get(1).getStatements());
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> ast.getMethods().get(0).getStatements());
+        Assertions.assertEquals(15, exception.getIndex());
+        Assertions.assertEquals(ast.getMethods().get(0), ast.getMethods().get(0));
+        Assertions.assertNotEquals(ast.getMethods().get(0), ast.getMethods().get(1));
+        Assertions.assertTrue(ast.getMethods().get(0).toString().contains("statements=(syntax error)"));
+    }
+
+    @Test
+    void testLazyBodyExceptionRepeated() {
+        // a failed parse must not leave the next one to resume after the error
+        Ast.Method method = new Parser(new Lexer("DEF f() DO x = 1 2; END").lex()).parseSourceLazily().getMethods().get(0);
+        for (int i = 0; i < 2; i++) {
+            ParseException exception = Assertions.assertThrows(ParseException.class, method::getStatements);
+            Assertions.assertEquals("Expected ';'.", exception.getMessage());
+            Assertions.assertEquals(17, exception.getIndex());
+        }
+        Assertions.assertTrue(method.toString().contains("statements=(syntax error)"));
+    }
+
+    @Test
+    void testLazyConcurrent() throws Exception {
+        StringBuilder input = new StringBuilder("DEF f() DO");
+        for (int i = 0; i < 1000; i++) {
+            input.append(" x = ").append(i).append(";");
+        }
+        input.append(" END");
+        for (int attempt = 0; attempt < 20; attempt++) {
+            Ast.Method method = new Parser(new Lexer(input.toString()).lex()).parseSourceLazily().getMethods().get(0);
+            List<Callable<List<Ast.Statement>>> tasks = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                tasks.add(method::getStatements);
+            }
+            // every thread sees the one parse, rather than a null body
+            for (Future<List<Ast.Statement>> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                Assertions.assertSame(method.getStatements(), future.get());
+            }
+        }
+    }
+
+    @Test
+    void testLazyMissingEnd() {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer("DEF f() DO IF x DO y; END").lex()).parseSourceLazily());
+        Assertions.assertEquals(25, exception.getIndex());
+    }
+
+    @Test
+    void testParallel() {
+        String input = "LET x: Integer = 1;\n" + String.join("\n", EXAMPLE.substring(EXAMPLE.indexOf("DEF")),
+                "DEF f(a: Integer) DO IF a DO RETURN END; END END",
+                "DEF g() DO FOR (i = 0; FOR < 1;) END END");
+        Ast.Source expected = new Parser(new Lexer(input).lex()).parseSource();
+        for (int count = 1; count <= 4; count++) {
+            Assertions.assertEquals(expected, new Parser(new Lexer(input).lex()).parseSourceParallel(ForkJoinPool.commonPool(), count));
+            Assertions.assertEquals(expected, new Parser(new Lexer(input).lexBuffer()).parseSourceParallel(ForkJoinPool.commonPool(), count));
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testParallelException(String test, String input, int index) {
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> new Parser(new Lexer(input).lex()).parseSourceParallel(ForkJoinPool.commonPool(), 3));
+        Assertions.assertEquals(index, exception.getIndex());
+    }
+
+    private static Stream<Arguments> testParallelException() {
+        return Stream.of(
+                Arguments.of("First Of Several", "DEF f() DO x END DEF g() DO END DEF h() DO y = ; END", 13),
+                Arguments.of("Missing End", "DEF f() DO END DEF g() DO END DEF h() DO IF x DO END", 52),
+                Arguments.of("Trailing Token", "DEF f() DO END DEF g() DO END DEF h() DO END;", 44)
+        );
+    }
+
+    @Test
+    void testRecovering() {
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = new Parser(new Lexer(EXAMPLE).lex()).parseSourceRecovering(errors);
+        Assertions.assertEquals(new Parser(new Lexer(EXAMPLE).lex()).parseSource(), ast);
+        Assertions.assertEquals(Arrays.asList(), errors);
+    }
+
+    @Test
+    void testRecoveringErrors() {
+        String input = "LET a: = 1; LET b: Integer; DEF f() DO x = ; y; IF z DO w END q; END DEF g( DO END DEF h() DO RETURN 1 END";
+        List<ParseException> errors = new ArrayList<>();
+        Ast.Source ast = new Parser(new Lexer(input).lex()).parseSourceRecovering(errors);
+        Assertions.assertEquals(Arrays.asList(7, 43, 58, 79, 103), errors.stream().map(ParseException::getIndex).collect(Collectors.toList()));
+        Assertions.assertEquals(Arrays.asList("b"), ast.getFields().stream().map(Ast.Field::getName).collect(Collectors.toList()));
+        Assertions.assertEquals(Arrays.asList("f", "h"), ast.getMethods().stream().map(Ast.Method::getName).collect(Collectors.toList()));
+        Assertions.assertEquals(3, ast.getMethods().get(0).getStatements().size());
+    }
+
+    @Test
+    void testIncremental() {
+        String input = "LET a: Integer = 1;\nLET b: Integer;\nDEF f() DO\n    x = 1;\nEND\nDEF g() DO\n    y = 2;\nEND\n";
+        ParsedSource previous = ParsedSource.parse(input);
+        int offset = input.indexOf("y = 2") + 4;
+        String edited = input.substring(0, offset) + "a + " + input.substring(offset);
+        ParsedSource parsed = previous.edit(edited, offset, 0, "a + ");
+        ParsedSource expected = ParsedSource.parse(edited);
+        Assertions.assertEquals(expected.getSource(), parsed.getSource());
+        Assertions.assertEquals(expected.getTokens(), parsed.getTokens());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.getStart(i), parsed.getStart(i));
+            Assertions.assertEquals(expected.getEnd(i), parsed.getEnd(i));
+        }
+        Assertions.assertSame(previous.getSource().getFields().get(1), parsed.getSource().getFields().get(1));
+        Assertions.assertSame(previous.getSource().getMethods().get(0), parsed.getSource().getMethods().get(0));
+        Assertions.assertNotSame(previous.getSource().getMethods().get(1), parsed.getSource().getMethods().get(1));
+    }
+
+    @Test
+    void testIncrementalShifted() {
+        String input = "DEF f() DO\n    x = 1;\nEND\nDEF g() DO\n    y = 2;\nEND\n";
+        ParsedSource previous = ParsedSource.parse(input);
+        int offset = input.indexOf("x = 1") + 4;
+        String edited = input.substring(0, offset) + "(1 + 2) * " + input.substring(offset);
+        ParsedSource parsed = previous.edit(edited, offset, 0, "(1 + 2) * ");
+        Assertions.assertEquals(ParsedSource.parse(edited).getSource(), parsed.getSource());
+        Assertions.assertSame(previous.getSource().getMethods().get(1), parsed.getSource().getMethods().get(1));
+        Assertions.assertEquals(previous.getStart(1) + 6, parsed.getStart(1));
+    }
+
+    @Test
+    void testIncrementalException() {
+        String input = "DEF f() DO\n    x = 1;\nEND\nDEF g() DO END\n";
+        ParsedSource previous = ParsedSource.parse(input);
+        int offset = input.indexOf("END");
+        String edited = input.substring(0, offset) + input.substring(offset + 3);
+        ParseException exception = Assertions.assertThrows(ParseException.class,
+                () -> previous.edit(edited, offset, 3, ""));
+        ParseException expected = Assertions.assertThrows(ParseException.class, () -> ParsedSource.parse(edited));
+        Assertions.assertEquals(expected.getIndex(), exception.getIndex());
+    }
+
+    @Test
+    void testArena() {
+        AstArena arena = new Parser(new Lexer(EXAMPLE).lex()).parseSourceArena();
+        Assertions.assertEquals(new Parser(new Lexer(EXAMPLE).lex()).parseSource(), arena.toSource());
+        Assertions.assertEquals(1, arena.getFieldCount());
+        Assertions.assertEquals("first", arena.getName(arena.getField(0)));
+        int main = arena.getMethod(0);
+        Assertions.assertEquals(AstArena.Kind.METHOD, arena.getKind(main));
+        Assertions.assertEquals("Integer", arena.getTypeName(main));
+        Assertions.assertEquals(0, arena.getParameterCount(main));
+        int loop = arena.getChild(main, 0);
+        Assertions.assertEquals(AstArena.Kind.WHILE, arena.getKind(loop));
+        Assertions.assertEquals(3, arena.getChildCount(loop));
+        int condition = arena.getChild(loop, 0);
+        Assertions.assertEquals("!=", arena.getName(condition));
+        Assertions.assertEquals(BigInteger.TEN, arena.getLiteral(arena.getChild(condition, 1)));
+        Assertions.assertEquals(AstArena.Kind.RETURN, arena.getKind(arena.getChild(main, 1)));
+        Scope scope = new Scope(null);
+        scope.defineVariable("first", false, Environment.create(BigInteger.ONE));
+        Assertions.assertEquals(true, arena.accept(condition, new Interpreter(scope)).getValue());
+    }
+
+    @Test
+    void testArenaVisitor() {
+        AstArena arena = new Parser(new Lexer(EXAMPLE).lex()).parseSourceArena();
+        // collects the operators of the binary expressions in source order
+        StringBuilder operators = new StringBuilder();
+        AstArena.Visitor<Void> visitor = new AstArena.Visitor<Void>() {
+            private Void children(int node) {
+                for (int i = 0; i < arena.getChildCount(node); i++) {
+                    arena.accept(arena.getChild(node, i), this);
+                }
+                return null;
+            }
+            @Override public Void visitField(int node) { return children(node); }
+            @Override public Void visitMethod(int node) { return children(node); }
+            @Override public Void visitExpression(int node) { return children(node); }
+            @Override public Void visitDeclaration(int node) { return children(node); }
+            @Override public Void visitAssignment(int node) { return children(node); }
+            @Override public Void visitIf(int node) { return children(node); }
+            @Override public Void visitFor(int node) { return children(node); }
+            @Override public Void visitWhile(int node) { return children(node); }
+            @Override public Void visitReturn(int node) { return children(node); }
+            @Override public Void visitLiteral(int node) { return children(node); }
+            @Override public Void visitGroup(int node) { return children(node); }
+            @Override
+            public Void visitBinary(int node) {
+                arena.accept(arena.getChild(node, 0), this);
+                operators.append(arena.getName(node));
+                return arena.accept(arena.getChild(node, 1), this);
+            }
+            @Override public Void visitAccess(int node) { return children(node); }
+            @Override public Void visitFunction(int node) { return children(node); }
+        };
+        arena.accept(arena.getField(0), visitor);
+        arena.accept(arena.getMethod(0), visitor);
+        Assertions.assertEquals("!=+", operators.toString());
+    }
+
+    @Test
+    void testIntern() {
+        Ast.Source source = new Parser(new Lexer(EXAMPLE).lex()).parseSource();
+        Analyzer analyzer = new Analyzer(new Scope(null));
+        analyzer.visit(source);
+        AstInterner interner = new AstInterner();
+        Ast.Source interned = interner.intern(source);
+        Assertions.assertEquals(source, interned);
+        Assertions.assertSame(interned, interner.intern(interned));
+        // first, 10, first != 10, 1, first + 1, print(first), 0
+        Assertions.assertEquals(7, interner.size());
+        Ast.Statement.While loop = (Ast.Statement.While) interned.getMethods().get(0).getStatements().get(0);
+        Ast.Expression.Binary condition = (Ast.Expression.Binary) loop.getCondition();
+        Ast.Statement.Assignment assignment = (Ast.Statement.Assignment) loop.getStatements().get(1);
+        Assertions.assertSame(condition.getLeft(), assignment.getReceiver());
+        Assertions.assertSame(condition.getLeft(), ((Ast.Expression.Binary) assignment.getValue()).getLeft());
+        Assertions.assertSame(interned.getFields().get(0).getValue().get(), ((Ast.Expression.Binary) assignment.getValue()).getRight());
+        Ast.Expression parsed = new Parser(new Lexer("first != 10").lex()).parseExpression();
+        Assertions.assertEquals(condition.hashCode(), parsed.hashCode());
+        analyzer.visit(parsed);
+        Assertions.assertSame(condition, interner.intern(parsed));
+    }
+
+    @Test
+    void testInternVariables() {
+        String input = String.join("\n",
+                "LET x: Integer = 1;",
+                "DEF f(): Integer DO RETURN x + 1; END",
+                "DEF g(): Integer DO LET x = 2; RETURN x + 1; END",
+                "DEF main(): Integer DO RETURN f() * 10 + g(); END"
+        );
+        Ast.Source source = new Parser(new Lexer(input).lex()).parseSource();
+        new Analyzer(new Scope(null)).visit(source);
+        Ast.Source interned = new AstInterner().intern(source);
+        // x + 1 adds the field in f, but the local variable in g
+        Ast.Expression.Binary field = (Ast.Expression.Binary) ((Ast.Statement.Return) interned.getMethods().get(0).getStatements().get(0)).getValue();
+        Ast.Expression.Binary local = (Ast.Expression.Binary) ((Ast.Statement.Return) interned.getMethods().get(1).getStatements().get(1)).getValue();
+        Assertions.assertNotSame(field, local);
+        Assertions.assertSame(field.getRight(), local.getRight());
+        Assertions.assertEquals(0, ((Ast.Expression.Access) field.getLeft()).getVariable().getDepth());
+        Assertions.assertEquals(1, ((Ast.Expression.Access) local.getLeft()).getVariable().getDepth());
+        Assertions.assertEquals(BigInteger.valueOf(23), new Interpreter(new Scope(null)).visit(interned).getValue());
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> new AstInterner().intern(new Parser(new Lexer("x + 1").lex()).parseExpression()));
+    }
+
+    private static final String EXAMPLE = String.join("\n",
+            "LET first: Integer = 1;",
+            "DEF main(): Integer DO",
+            "    WHILE first != 10 DO",
+            "        print(first);",
+            "        first = first + 1;",
+            "    END",
+            "    RETURN 0;",
+            "END"
+    );
+
     /**
      * Standard test function. If expected is null, a ParseException is expected
      * to be thrown (not used in the provided tests).